@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.handler;
+
+import static org.junit.Assert.*;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.junit.After;
+import org.junit.Test;
+import org.openhab.binding.miyo.handler.CircuitEventDispatcher.EventType;
+import org.openhab.binding.miyo.internal.Circuit;
+import org.openhab.binding.miyo.internal.CircuitField;
+import org.openhab.binding.miyo.internal.Cube;
+import org.openhab.binding.miyo.internal.CubeMetrics;
+import org.openhab.binding.miyo.internal.TestCircuits;
+
+/**
+ * {@link CircuitEventDispatcherTest} prüft Start und Shutdown des {@link CircuitEventDispatcher} und die Zähler in
+ * den {@link CubeMetrics}
+ *
+ *
+ *
+ */
+public class CircuitEventDispatcherTest {
+    private static final Set<CircuitField> CHANGES = EnumSet.of(CircuitField.IRRIGATION);
+
+    private final CubeMetrics metrics = new CubeMetrics();
+    private final CircuitEventDispatcher dispatcher = new CircuitEventDispatcher("test", metrics);
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void publishesDispatchedEventsToMetrics() throws InterruptedException {
+        dispatcher.start();
+        CountingListener listener = new CountingListener(3);
+
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(listener, null, TestCircuits.circuit("c" + i), EventType.CHANGED, CHANGES);
+        }
+
+        assertTrue(listener.await());
+        waitForDispatched(3);
+        assertEquals(0, metrics.getEventsQueued());
+        assertEquals("3", metrics.toProperties().get(CubeMetrics.PROPERTY_EVENTS_DISPATCHED));
+    }
+
+    // Ein blockierter Listener bekommt zwei Events desselben Circuits als eines
+    @Test
+    public void countsCoalescedEvents() throws InterruptedException {
+        dispatcher.start();
+        CountDownLatch release = new CountDownLatch(1);
+        CountingListener listener = new CountingListener(2) {
+            @Override
+            public void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit, Set<CircuitField> changes) {
+                super.onCircuitStateChanged(cube, circuit, changes);
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        dispatcher.dispatch(listener, null, TestCircuits.circuit("blocking"), EventType.CHANGED, CHANGES);
+        while (listener.getCount() == 2) {
+            Thread.sleep(1);
+        }
+        dispatcher.dispatch(listener, null, TestCircuits.circuit("c1"), EventType.CHANGED, CHANGES);
+        dispatcher.dispatch(listener, null, TestCircuits.circuit("c1"), EventType.CHANGED, CHANGES);
+        assertEquals(1, metrics.getEventsQueued());
+        release.countDown();
+
+        assertTrue(listener.await());
+        assertEquals(1, metrics.getEventsCoalesced());
+    }
+
+    @Test
+    public void dropsEventsAfterShutdownAndDeliversAfterRestart() throws InterruptedException {
+        dispatcher.start();
+        dispatcher.shutdown();
+        CountingListener listener = new CountingListener(1);
+
+        dispatcher.dispatch(listener, null, TestCircuits.circuit("c1"), EventType.CHANGED, CHANGES);
+        assertEquals(1, metrics.getEventsDropped());
+        assertEquals(0, metrics.getEventsQueued());
+
+        dispatcher.start();
+        dispatcher.dispatch(listener, null, TestCircuits.circuit("c1"), EventType.CHANGED, CHANGES);
+        assertTrue(listener.await());
+    }
+
+    private void waitForDispatched(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getEventsDispatched() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(expected, metrics.getEventsDispatched());
+    }
+
+    private static class CountingListener implements CircuitStatusListener {
+        private final CountDownLatch latch;
+
+        private CountingListener(int events) {
+            latch = new CountDownLatch(events);
+        }
+
+        private boolean await() throws InterruptedException {
+            return latch.await(5, TimeUnit.SECONDS);
+        }
+
+        private long getCount() {
+            return latch.getCount();
+        }
+
+        @Override
+        public void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit, Set<CircuitField> changes) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onCircuitRemoved(@Nullable Cube cube, Circuit circuit) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onCircuitAdded(@Nullable Cube cube, Circuit circuit) {
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.handler;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.junit.Test;
+import org.openhab.binding.miyo.internal.Circuit;
+import org.openhab.binding.miyo.internal.CircuitField;
+import org.openhab.binding.miyo.internal.Cube;
+
+/**
+ * {@link CircuitListenerIndexTest} prüft, dass Events nur an die Listener ihres Circuits und an die Listener für alle
+ * Circuits gehen
+ *
+ *
+ *
+ */
+public class CircuitListenerIndexTest {
+    private static final int CIRCUITS = 500;
+
+    @Test
+    public void listenerReceivesOnlyEventsOfItsCircuit() {
+        CircuitListenerIndex index = new CircuitListenerIndex();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        RecordingListener discovery = new RecordingListener();
+        assertTrue(index.add("c1", first));
+        assertTrue(index.add("c2", second));
+        assertTrue(index.add(discovery));
+
+        deliver(index, "c1");
+        deliver(index, "c2");
+        deliver(index, "c3");
+
+        assertEquals(list("c1"), first.circuitIds);
+        assertEquals(list("c2"), second.circuitIds);
+        assertEquals(list("c1", "c2", "c3"), discovery.circuitIds);
+        assertFalse(new CircuitListenerIndex().hasListeners("c1"));
+    }
+
+    @Test
+    public void unregisterRemovesListenerFromIndex() {
+        CircuitListenerIndex index = new CircuitListenerIndex();
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        index.add("c1", first);
+        index.add("c1", second);
+
+        assertTrue(index.remove("c1", first));
+        assertFalse("A listener is only removed once", index.remove("c1", first));
+        assertFalse("The listener is not registered for other circuits", index.remove("c2", second));
+        deliver(index, "c1");
+        assertTrue(first.circuitIds.isEmpty());
+        assertEquals(list("c1"), second.circuitIds);
+
+        assertTrue(index.remove("c1", second));
+        assertEquals("A circuit without listeners leaves the index", 0, index.getCircuitCount());
+        assertFalse(index.hasListeners("c1"));
+    }
+
+    // 500 Circuits mit je einem Handler und eine Discovery: pro Poll, der alle Circuits ändert, bekommt jeder Handler
+    // genau ein Event, statt 500 zu verwerfen
+    @Test
+    public void dispatchCostDoesNotGrowWithHandlers() {
+        CircuitListenerIndex index = new CircuitListenerIndex();
+        List<RecordingListener> handlers = new ArrayList<>();
+        for (int i = 0; i < CIRCUITS; i++) {
+            RecordingListener handler = new RecordingListener();
+            handlers.add(handler);
+            index.add("c" + i, handler);
+        }
+        RecordingListener discovery = new RecordingListener();
+        index.add(discovery);
+
+        int[] deliveries = new int[1];
+        long start = System.nanoTime();
+        for (int i = 0; i < CIRCUITS; i++) {
+            String circuitId = "c" + i;
+            index.forEach(circuitId, listener -> {
+                deliveries[0]++;
+                ((RecordingListener) listener).circuitIds.add(circuitId);
+            });
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+
+        assertEquals("Deliveries for one poll in " + micros + " us", 2 * CIRCUITS, deliveries[0]);
+        for (int i = 0; i < CIRCUITS; i++) {
+            assertEquals(list("c" + i), handlers.get(i).circuitIds);
+        }
+        assertEquals(CIRCUITS, discovery.circuitIds.size());
+    }
+
+    private static void deliver(CircuitListenerIndex index, String circuitId) {
+        index.forEach(circuitId, listener -> ((RecordingListener) listener).circuitIds.add(circuitId));
+    }
+
+    private static List<String> list(String... circuitIds) {
+        List<String> result = new ArrayList<>();
+        for (String circuitId : circuitIds) {
+            result.add(circuitId);
+        }
+        return result;
+    }
+
+    private static class RecordingListener implements CircuitStatusListener {
+        private final List<String> circuitIds = new ArrayList<>();
+
+        @Override
+        public void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit) {
+            circuitIds.add(circuit.getOpenhabId());
+        }
+
+        @Override
+        public void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit, Set<CircuitField> changes) {
+            circuitIds.add(circuit.getOpenhabId());
+        }
+
+        @Override
+        public void onCircuitRemoved(@Nullable Cube cube, Circuit circuit) {
+            circuitIds.add(circuit.getOpenhabId());
+        }
+
+        @Override
+        public void onCircuitAdded(@Nullable Cube cube, Circuit circuit) {
+            circuitIds.add(circuit.getOpenhabId());
+        }
+    }
+}
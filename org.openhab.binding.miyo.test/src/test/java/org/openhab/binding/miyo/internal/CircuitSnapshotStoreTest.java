@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link CircuitSnapshotStoreTest} prüft, dass der Snapshot alle Werte der Circuits erhält und sich 1000 Circuits in
+ * wenigen Millisekunden laden lassen
+ *
+ *
+ *
+ */
+public class CircuitSnapshotStoreTest {
+    private static final int CIRCUITS = 1000;
+    // "Wenige Millisekunden", mit Spielraum für langsame Build-Rechner
+    private static final long MAX_LOAD_MILLIS = 50;
+
+    private Path directory;
+    private CircuitSnapshotStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("miyo-snapshot");
+        store = new CircuitSnapshotStore(directory.resolve("cube.snapshot"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.delete();
+        Files.deleteIfExists(directory.resolve("cube.snapshot.tmp"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void missingSnapshotIsEmpty() throws IOException {
+        assertTrue(store.read().isEmpty());
+    }
+
+    @Test
+    public void roundTripKeepsAllValuesAndMarksStale() throws IOException {
+        List<Circuit> circuits = createCircuits(CIRCUITS);
+        store.write(circuits);
+
+        List<Circuit> loaded = store.read();
+
+        assertEquals(CIRCUITS, loaded.size());
+        for (int i = 0; i < CIRCUITS; i++) {
+            Circuit expected = circuits.get(i);
+            Circuit actual = loaded.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getOpenhabId(), actual.getOpenhabId());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getSensor(), actual.getSensor());
+            assertEquals(expected.getIrrigation(), actual.getIrrigation());
+            assertEquals(expected.getWintermode(), actual.getWintermode());
+            assertEquals(expected.getExternBlock(), actual.getExternBlock());
+            assertEquals(expected.getNextIrrigationStart(), actual.getNextIrrigationStart());
+            assertEquals(expected.getNextIrrigationEnd(), actual.getNextIrrigationEnd());
+            assertEquals(expected.getTemperature(), actual.getTemperature(), 0);
+            assertEquals(expected.getMoisture(), actual.getMoisture(), 0);
+            assertEquals(expected.getBrightness(), actual.getBrightness(), 0);
+            if (expected.getState() == null) {
+                assertNull(actual.getState());
+            } else {
+                assertEquals(expected.getState().getBorderBottom(), actual.getState().getBorderBottom());
+                assertEquals(expected.getState().getBorderTop(), actual.getState().getBorderTop());
+                assertEquals(expected.getState().getConsiderMower(), actual.getState().getConsiderMower());
+            }
+            assertTrue(actual.isStale());
+        }
+    }
+
+    @Test
+    public void loadsThousandCircuitsInFewMilliseconds() throws IOException {
+        store.write(createCircuits(CIRCUITS));
+        // Aufwärmen, damit der JIT-Compiler nicht mitgemessen wird
+        for (int i = 0; i < 20; i++) {
+            store.read();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            assertEquals(CIRCUITS, store.read().size());
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(best);
+        assertTrue("Loading " + CIRCUITS + " circuits took " + micros + " us",
+                micros < TimeUnit.MILLISECONDS.toMicros(MAX_LOAD_MILLIS));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownFormat() throws IOException {
+        Files.write(directory.resolve("cube.snapshot"), "{\"circuits\":[]}".getBytes(StandardCharsets.UTF_8));
+
+        store.read();
+    }
+
+    private static List<Circuit> createCircuits(int count) {
+        List<Circuit> circuits = new ArrayList<>();
+        DateTime now = new DateTime(1500000000000L);
+        for (int i = 0; i < count; i++) {
+            Circuit circuit = TestCircuits.circuit("circuit-" + i, i % 3 == 0);
+            circuit.setWintermode(i % 5 == 0);
+            circuit.setExternBlock(i % 7 == 0);
+            circuit.setSensor(i % 4 == 0 ? null : "sensor-" + i);
+            if (i % 2 == 0) {
+                State params = new State();
+                params.setBorderBottom(Integer.toString(20 + i % 10));
+                params.setBorderTop(Integer.toString(60 + i % 10));
+                params.setConsiderMower(i % 4 == 0);
+                circuit.setState(params);
+            }
+            circuit.setIrrigationStart(i % 6 == 0 ? null : now.plusMinutes(i));
+            circuit.setIrrigationEnd(i % 6 == 0 ? null : now.plusMinutes(i + 30));
+            circuit.setTemperature(15.5f + i % 10);
+            circuit.setMoisture(40f + i % 50);
+            circuit.setBrightness(1000f * (i % 3));
+            circuits.add(circuit);
+        }
+        return circuits;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * {@link CircuitStateStoreTest} prüft den Stand im {@link CircuitStateStore} und vergleicht Heap und Allokationen für
+ * 1000 Circuits mit den bisherigen Maps aus Circuit Objekten
+ *
+ *
+ *
+ */
+public class CircuitStateStoreTest {
+    private static final int CIRCUITS = 1000;
+    private static final int POLLS = 20;
+    private static final int CUBES = 10;
+
+    @Test
+    public void returnsStoredCircuit() {
+        CircuitStateStore store = new CircuitStateStore();
+        Circuit circuit = circuit(7);
+        circuit.setStale(true);
+
+        assertEquals(CircuitField.values().length, store.update(circuit).size());
+        Circuit stored = store.getCircuit(circuit.getOpenhabId());
+
+        assertEquals(circuit.getId(), stored.getId());
+        assertEquals(circuit.getOpenhabId(), stored.getOpenhabId());
+        assertEquals(circuit.getName(), stored.getName());
+        assertEquals(circuit.getSensor(), stored.getSensor());
+        assertEquals(circuit.getIrrigation(), stored.getIrrigation());
+        assertEquals(circuit.getWintermode(), stored.getWintermode());
+        assertEquals(circuit.getExternBlock(), stored.getExternBlock());
+        assertEquals(circuit.getNextIrrigationStart(), stored.getNextIrrigationStart());
+        assertNull(stored.getNextIrrigationEnd());
+        assertEquals("20", stored.getState().getBorderBottom());
+        assertEquals("60.5", stored.getState().getBorderTop());
+        assertTrue(stored.getState().getConsiderMower());
+        assertEquals(circuit.getTemperature(), stored.getTemperature(), 0);
+        assertEquals(circuit.getMoisture(), stored.getMoisture(), 0);
+        assertEquals(circuit.getBrightness(), stored.getBrightness(), 0);
+        assertTrue(stored.isStale());
+        assertNull(store.getCircuit("unknown"));
+    }
+
+    // Ein offener Befehl ändert nur den angezeigten Wert, der Snapshot bekommt den vom Cube gemeldeten
+    @Test
+    public void keepsConfirmedValueBesideDisplayedValue() {
+        CircuitStateStore store = new CircuitStateStore();
+        Circuit reported = circuit(1);
+        store.update(reported);
+        int slot = store.getSlot(reported.getOpenhabId());
+
+        assertTrue(store.setDisplayed(slot, CircuitField.IRRIGATION, true));
+        assertFalse(store.setDisplayed(slot, CircuitField.IRRIGATION, true));
+        assertTrue(store.getCircuit(slot).getIrrigation());
+        assertFalse(store.getConfirmed(slot, CircuitField.IRRIGATION));
+        assertFalse(store.getConfirmedCircuits().get(0).getIrrigation());
+
+        // Der nächste Poll meldet weiter false, angezeigt bleibt der erwartete Wert
+        assertTrue(store.update(circuit(1), reported.withIrrigation(true)).isEmpty());
+        assertTrue(store.getIrrigation(slot));
+        assertFalse(store.getConfirmed(slot, CircuitField.IRRIGATION));
+    }
+
+    @Test
+    public void keepsStringsOfFirstPoll() {
+        CircuitStateStore store = new CircuitStateStore();
+        Circuit first = circuit(3);
+        store.update(first);
+
+        assertTrue(store.update(circuit(3)).isEmpty());
+
+        Circuit stored = store.getCircuit(first.getOpenhabId());
+        assertSame(first.getName(), stored.getName());
+        assertSame(first.getSensor(), stored.getSensor());
+    }
+
+    @Test
+    public void removedCircuitIsNotReturned() {
+        CircuitStateStore store = new CircuitStateStore();
+        Circuit circuit = circuit(2);
+        store.update(circuit);
+        store.remove(circuit.getOpenhabId());
+
+        assertEquals(-1, store.getSlot(circuit.getOpenhabId()));
+        assertNull(store.getCircuit(circuit.getOpenhabId()));
+        assertTrue(store.getCircuits().isEmpty());
+        assertEquals(CircuitField.values().length, store.update(circuit).size());
+    }
+
+    // Bisher hielten lastCircuitStates und confirmedCircuitStates nach jedem Poll die Circuit Objekte dieses Polls
+    // samt DateTimes, State und Strings. Der Store hält dieselben Werte in Arrays. Gemessen wird über mehrere Cubes
+    // mit je 1000 Circuits, die erste Runde lädt nur die Klassen
+    @Test
+    public void retainsLessHeapThanCircuitMaps() {
+        long maps = 0;
+        long stored = 0;
+        for (int round = 0; round < 2; round++) {
+            List<Object> cubes = new ArrayList<>();
+            long before = usedHeap();
+            for (int i = 0; i < CUBES; i++) {
+                Map<String, Circuit> lastCircuitStates = new ConcurrentHashMap<>();
+                Map<String, Circuit> confirmedCircuitStates = new ConcurrentHashMap<>();
+                for (Circuit circuit : poll()) {
+                    lastCircuitStates.put(circuit.getOpenhabId(), circuit);
+                    // Ohne offene Befehle war der gemeldete derselbe Circuit wie der angezeigte
+                    confirmedCircuitStates.put(circuit.getOpenhabId(), circuit);
+                }
+                cubes.add(lastCircuitStates);
+                cubes.add(confirmedCircuitStates);
+            }
+            maps = (usedHeap() - before) / (CUBES * CIRCUITS);
+            cubes.clear();
+
+            before = usedHeap();
+            for (int i = 0; i < CUBES; i++) {
+                CircuitStateStore store = new CircuitStateStore();
+                for (Circuit circuit : poll()) {
+                    store.update(circuit);
+                }
+                cubes.add(store);
+            }
+            stored = (usedHeap() - before) / (CUBES * CIRCUITS);
+            assertEquals(CUBES, cubes.size());
+        }
+
+        String sizes = "maps " + maps + " bytes/circuit, store " + stored + " bytes/circuit";
+        assertTrue(sizes, stored < maps * 9 / 10);
+    }
+
+    // Bisher überlebte jeder Circuit eines Polls bis zum nächsten Poll und damit die Young Collections dazwischen.
+    // Der Store übernimmt nur die Werte, die Objekte des Polls werden sofort frei
+    @Test
+    public void polledCircuitsAreNotRetained() {
+        Map<String, Circuit> lastCircuitStates = new ConcurrentHashMap<>();
+        CircuitStateStore store = new CircuitStateStore();
+        for (Circuit circuit : poll()) {
+            lastCircuitStates.put(circuit.getOpenhabId(), circuit);
+            store.update(circuit);
+        }
+
+        List<WeakReference<Circuit>> mapped = apply(poll(),
+                circuit -> lastCircuitStates.put(circuit.getOpenhabId(), circuit));
+        List<WeakReference<Circuit>> stored = apply(poll(), circuit -> assertTrue(store.update(circuit).isEmpty()));
+        // Sammelt alles ein, was nur noch schwach erreichbar ist
+        usedHeap();
+
+        assertEquals(CIRCUITS, countReachable(mapped));
+        assertEquals(0, countReachable(stored));
+        assertEquals(CIRCUITS, lastCircuitStates.size());
+    }
+
+    // Ein Poll ohne Änderungen alloziert im Store nichts, nur das Parsen der Borders braucht kurzlebige Puffer
+    @Test
+    public void unchangedPollAllocatesLittle() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        List<List<Circuit>> polls = new ArrayList<>();
+        for (int i = 0; i < POLLS; i++) {
+            polls.add(poll());
+        }
+        CircuitStateStore store = new CircuitStateStore();
+        for (List<Circuit> poll : polls) {
+            for (Circuit circuit : poll) {
+                store.update(circuit);
+            }
+        }
+
+        long thread = Thread.currentThread().getId();
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (List<Circuit> poll : polls) {
+            for (Circuit circuit : poll) {
+                store.update(circuit);
+            }
+        }
+        long perCircuit = (threads.getThreadAllocatedBytes(thread) - start) / (POLLS * CIRCUITS);
+
+        assertTrue(perCircuit + " bytes/circuit per poll", perCircuit < 128);
+    }
+
+    // Eigene Methode, damit die Liste des Polls danach nicht mehr von einer lokalen Variable gehalten wird
+    private static List<WeakReference<Circuit>> apply(List<Circuit> poll, Consumer<Circuit> action) {
+        List<WeakReference<Circuit>> references = new ArrayList<>();
+        for (Circuit circuit : poll) {
+            action.accept(circuit);
+            references.add(new WeakReference<>(circuit));
+        }
+        return references;
+    }
+
+    private static int countReachable(List<WeakReference<Circuit>> references) {
+        int reachable = 0;
+        for (WeakReference<Circuit> reference : references) {
+            if (reference.get() != null) {
+                reachable++;
+            }
+        }
+        return reachable;
+    }
+
+    // Neue Objekte wie nach dem Parsen einer Antwort des Cubes
+    private static List<Circuit> poll() {
+        List<Circuit> circuits = new ArrayList<>(CIRCUITS);
+        for (int i = 0; i < CIRCUITS; i++) {
+            circuits.add(circuit(i));
+        }
+        return circuits;
+    }
+
+    private static Circuit circuit(int index) {
+        Circuit circuit = TestCircuits.circuit(new StringBuilder("circuit-").append(index).toString());
+        circuit.setSensor(new StringBuilder("sensor-").append(index).toString());
+        circuit.setWintermode(index % 3 == 0);
+        circuit.setExternBlock(index % 5 == 0);
+        circuit.setIrrigationStart(new DateTime(1500000000000L + index * 1000L));
+        State state = new State();
+        state.setBorderBottom("20");
+        state.setBorderTop("60.5");
+        state.setConsiderMower(true);
+        circuit.setState(state);
+        circuit.setTemperature(18.5f + index % 10);
+        circuit.setMoisture(40 + index % 50);
+        circuit.setBrightness(1000 + index);
+        return circuit;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link CubeCloseTest} prüft, dass {@link Cube#close()} laufende Requests an einen Cube, der nie antwortet, sofort
+ * abbricht statt auf deren Timeout zu warten
+ *
+ *
+ *
+ */
+public class CubeCloseTest {
+    private static final int REQUEST_TIMEOUT = 10000;
+    private static final long MAX_CLOSE_MILLIS = 100;
+
+    private ServerSocket server;
+    private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+    private final CountDownLatch connections = new CountDownLatch(2);
+
+    // Nimmt Verbindungen an, liest aber nichts und antwortet nie
+    @Before
+    public void startSilentServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    accepted.add(server.accept());
+                    connections.countDown();
+                }
+            } catch (IOException e) {
+                // Server geschlossen
+            }
+        }, "silent-cube");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void stopSilentServer() throws IOException {
+        server.close();
+        for (Socket socket : accepted) {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void closeAbortsBlockingAndAsyncRequests() throws Exception {
+        Cube cube = new Cube(InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getLocalPort());
+        cube.setTimeout(REQUEST_TIMEOUT);
+
+        // authenticate setzt den API-Key und wartet dann blockierend auf die Antwort des Cubes
+        AtomicReference<Exception> authenticateError = new AtomicReference<>();
+        Thread authenticate = new Thread(() -> {
+            try {
+                cube.authenticate("apikey");
+            } catch (Exception e) {
+                authenticateError.set(e);
+            }
+        }, "authenticate");
+        authenticate.start();
+        while (cube.getUsername() == null && authenticate.isAlive()) {
+            Thread.sleep(1);
+        }
+        CompletableFuture<List<Circuit>> circuits = cube.getCircuitsAsync();
+        assertTrue("Both requests should reach the Cube", connections.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        cube.close();
+        try {
+            circuits.get(MAX_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+            fail("The async request should fail after close");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        authenticate.join(MAX_CLOSE_MILLIS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertFalse("The blocking request should return after close", authenticate.isAlive());
+        assertTrue(authenticateError.get() instanceof IOException);
+        assertTrue("close took " + elapsed + " ms", elapsed < MAX_CLOSE_MILLIS);
+    }
+
+    @Test
+    public void closedCubeRejectsNewRequests() throws Exception {
+        Cube cube = new Cube(InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getLocalPort());
+        cube.setTimeout(REQUEST_TIMEOUT);
+        cube.close();
+
+        long start = System.nanoTime();
+        try {
+            cube.authenticate("apikey");
+            fail("A closed Cube should not send requests");
+        } catch (IOException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < MAX_CLOSE_MILLIS);
+        }
+        assertEquals(0, accepted.size());
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openhab.binding.miyo.internal.StubCubeServer.Response;
+
+/**
+ * {@link CubeProbeTest} prüft, wie {@link Cube#probe()} die Antworten eines {@link StubCubeServer} bewertet
+ *
+ *
+ *
+ */
+public class CubeProbeTest {
+    private static final int REQUEST_TIMEOUT = 10000;
+    // PROBE_CONNECT_TIMEOUT mit Spielraum
+    private static final long MAX_PROBE_MILLIS = 2500;
+
+    private StubCubeServer server;
+    private Cube cube;
+
+    @After
+    public void tearDown() throws IOException {
+        if (cube != null) {
+            cube.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    // Ein HTTP Fehler ist eine Antwort des Cubes, er ist also erreichbar
+    @Test
+    public void serverErrorMeansReachable() throws Exception {
+        startCube(500);
+
+        assertEquals(ProbeResult.OK, cube.probe());
+        assertEquals(ConnectionBreaker.State.CLOSED, cube.getBreakerState());
+    }
+
+    @Test
+    public void unauthorizedStatusMeansRejectedApiKey() throws Exception {
+        startCube(401);
+
+        assertEquals(ProbeResult.UNAUTHORIZED, cube.probe());
+    }
+
+    @Test
+    public void forbiddenStatusMeansRejectedApiKey() throws Exception {
+        startCube(403);
+
+        assertEquals(ProbeResult.UNAUTHORIZED, cube.probe());
+    }
+
+    @Test
+    public void closedPortMeansUnreachable() throws Exception {
+        startCube(200);
+        server.close();
+
+        assertEquals(ProbeResult.UNREACHABLE, cube.probe());
+    }
+
+    // Ein Cube, der die Verbindung annimmt, aber nicht antwortet, hält die Probe nicht für den vollen Timeout der
+    // Abfragen auf
+    @Test
+    public void probeDoesNotWaitForRequestTimeout() throws Exception {
+        startCube(new StubCubeServer((method, path, body) -> {
+            try {
+                Thread.sleep(REQUEST_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Response.ok("{\"status\":\"success\",\"params\":{}}");
+        }));
+
+        long start = System.nanoTime();
+        assertEquals(ProbeResult.UNREACHABLE, cube.probe());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Probe took " + elapsed + " ms", elapsed < MAX_PROBE_MILLIS);
+    }
+
+    // Die Probe nach fehlgeschlagenen Abfragen zählt nicht als weiterer Fehler, der Breaker öffnet erst mit der
+    // dritten Abfrage
+    @Test
+    public void probeAfterFailedPollsDoesNotTripBreaker() throws Exception {
+        startCube(200);
+        server.close();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cube.getCircuits();
+                fail("Poll of a closed port should fail");
+            } catch (IOException e) {
+                // erwartet
+            }
+            assertEquals(ProbeResult.UNREACHABLE, cube.probe());
+        }
+        assertEquals(ConnectionBreaker.State.CLOSED, cube.getBreakerState());
+
+        try {
+            cube.getCircuits();
+            fail("Poll of a closed port should fail");
+        } catch (IOException e) {
+            // erwartet
+        }
+        assertEquals(ConnectionBreaker.State.OPEN, cube.getBreakerState());
+    }
+
+    private void startCube(int status) throws Exception {
+        startCube(new StubCubeServer(
+                (method, path, body) -> new Response(status, "{\"status\":\"success\",\"params\":{}}")));
+    }
+
+    private void startCube(StubCubeServer server) throws Exception {
+        this.server = server;
+        cube = new Cube(server.getAddress());
+        cube.setTimeout(REQUEST_TIMEOUT);
+        // Ohne authenticate, damit probe() nicht dessen Ergebnis aus dem Cache liefert
+        Field username = Cube.class.getDeclaredField("username");
+        username.setAccessible(true);
+        username.set(cube, "apikey");
+    }
+}
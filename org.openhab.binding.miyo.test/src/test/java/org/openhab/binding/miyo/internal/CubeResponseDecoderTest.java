@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.openhab.binding.miyo.internal.CubeResponseDecoder.CircuitsResponse;
+import org.openhab.binding.miyo.internal.CubeResponseDecoder.SensorResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * {@link CubeResponseDecoderTest} vergleicht den {@link CubeResponseDecoder} mit dem bisherigen Parsen über
+ * Gson-Bäume: Für dieselbe Antwort des Cubes müssen dieselben Circuits und Sensorwerte entstehen
+ *
+ *
+ *
+ */
+public class CubeResponseDecoderTest {
+    private static final int[] CIRCUIT_COUNTS = { 10, 100, 1000 };
+
+    @Test
+    public void decodesCircuitsLikeTreeParse() throws IOException {
+        for (int count : CIRCUIT_COUNTS) {
+            String json = circuitsJson(count, new Random(count));
+
+            List<Circuit> expected = LegacyParser.parseCircuits(json);
+            CircuitsResponse actual = CubeResponseDecoder.readCircuits(stream(json));
+
+            assertEquals("success", actual.status);
+            assertEquals(count, expected.size());
+            assertEquals(expected.size(), actual.circuits.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Circuit circuit = actual.circuits.get(i);
+                circuit.setOpenhabId(circuit.getId());
+                assertSameCircuit(expected.get(i), circuit);
+            }
+        }
+    }
+
+    @Test
+    public void decodesSensorStatusLikeTreeParse() throws IOException {
+        Random random = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            String json = sensorJson(random);
+
+            Circuit expected = new Circuit();
+            LegacyParser.applySensor(json, expected);
+            SensorResponse response = CubeResponseDecoder.readSensorStatus(stream(json));
+            Circuit actual = new Circuit();
+            response.sensor.applyTo(actual);
+
+            assertEquals("success", response.status);
+            assertEquals(expected.getTemperature(), actual.getTemperature(), 0);
+            assertEquals(expected.getMoisture(), actual.getMoisture(), 0);
+            assertEquals(expected.getBrightness(), actual.getBrightness(), 0);
+        }
+    }
+
+    @Test
+    public void decodesErrorStatus() throws IOException {
+        String json = "{\"status\":\"error\",\"params\":{}}";
+
+        assertEquals(CubeResponseDecoder.STATUS_ERROR, CubeResponseDecoder.readCircuits(stream(json)).status);
+        assertEquals(CubeResponseDecoder.STATUS_ERROR, CubeResponseDecoder.readSensorStatus(stream(json)).status);
+        assertEquals(CubeResponseDecoder.STATUS_ERROR, CubeResponseDecoder.readStatus(stream(json)));
+    }
+
+    // Der Decoder darf pro Poll nur einen Bruchteil dessen allokieren, was das mehrfache Parsen der Teilbäume braucht
+    @Test
+    public void allocatesLessThanTreeParse() throws IOException {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        if (!allocation.isThreadAllocatedMemorySupported() || !allocation.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        long thread = Thread.currentThread().getId();
+        for (int count : CIRCUIT_COUNTS) {
+            String json = circuitsJson(count, new Random(count));
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            // Aufwärmen, damit Klassenladen und JIT nicht mitgezählt werden
+            for (int i = 0; i < 2; i++) {
+                LegacyParser.parseCircuits(json);
+                CubeResponseDecoder.readCircuits(new ByteArrayInputStream(body));
+            }
+
+            long start = allocation.getThreadAllocatedBytes(thread);
+            // Das bisherige Parsen bekam den Body als String aus IOUtils.toString
+            LegacyParser.parseCircuits(new String(body, StandardCharsets.UTF_8));
+            long tree = allocation.getThreadAllocatedBytes(thread) - start;
+
+            start = allocation.getThreadAllocatedBytes(thread);
+            CubeResponseDecoder.readCircuits(new ByteArrayInputStream(body));
+            long streaming = allocation.getThreadAllocatedBytes(thread) - start;
+
+            assertTrue(count + " circuits: streaming " + streaming + " bytes, tree parse " + tree + " bytes",
+                    streaming * 2 < tree);
+        }
+    }
+
+    private static void assertSameCircuit(Circuit expected, Circuit actual) {
+        String id = expected.getId();
+        assertEquals(id, expected.getId(), actual.getId());
+        assertEquals(id, expected.getOpenhabId(), actual.getOpenhabId());
+        assertEquals(id, expected.getName(), actual.getName());
+        assertEquals(id, expected.getSensor(), actual.getSensor());
+        assertEquals(id, expected.getIrrigation(), actual.getIrrigation());
+        assertEquals(id, expected.getWintermode(), actual.getWintermode());
+        assertEquals(id, expected.getExternBlock(), actual.getExternBlock());
+        assertEquals(id, expected.getNextIrrigationStart(), actual.getNextIrrigationStart());
+        assertEquals(id, expected.getNextIrrigationEnd(), actual.getNextIrrigationEnd());
+        assertEquals(id, expected.getState().getBorderBottom(), actual.getState().getBorderBottom());
+        assertEquals(id, expected.getState().getBorderTop(), actual.getState().getBorderTop());
+        assertEquals(id, expected.getState().getConsiderMower(), actual.getState().getConsiderMower());
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Antwort wie von /api/circuit/all, mit den Varianten, die der Cube liefert: Werte als JSON-Typ oder als String,
+    // unbekannte Felder und fehlende Zeiten
+    private static String circuitsJson(int count, Random random) {
+        StringBuilder json = new StringBuilder("{\"status\":\"success\",\"params\":{\"version\":2,\"circuits\":{");
+        for (int i = 0; i < count; i++) {
+            String id = String.format("{%08x-0000-4000-8000-%012x}", random.nextInt(), (long) i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(id).append("\":{\"id\":\"").append(id).append("\",\"name\":\"Kreis ").append(i)
+                    .append(" \\u00e4\",\"sensor\":\"").append(random.nextInt(4) == 0 ? "0" : "{sensor-" + i + "}")
+                    .append("\",\"valves\":[\"{valve-").append(i).append("}\"],\"params\":{\"borderBottom\":")
+                    .append(random.nextBoolean() ? "\"" + random.nextInt(50) + "\"" : random.nextInt(50))
+                    .append(",\"borderTop\":\"").append(50 + random.nextInt(50)).append("\",\"considerMower\":")
+                    .append(random.nextBoolean()).append(",\"automaticMode\":{\"enabled\":true}},\"stateTypes\":{");
+            long now = 1500000000L + random.nextInt(1000000);
+            appendStateType(json, "1", "irrigation", bool(random), true);
+            appendStateType(json, "2", "winterMode", bool(random), false);
+            if (random.nextInt(5) != 0) {
+                appendStateType(json, "3", "irrigationNextStart", Long.toString(now), false);
+                appendStateType(json, "4", "irrigationNextEnd", "\"" + (now + 600) + "\"", false);
+            }
+            appendStateType(json, "5", "externBlock", bool(random), false);
+            appendStateType(json, "6", "valveState", "[1,2,{\"a\":null}]", false);
+            json.append("}}");
+        }
+        return json.append("}}}").toString();
+    }
+
+    private static String bool(Random random) {
+        boolean value = random.nextBoolean();
+        return random.nextBoolean() ? Boolean.toString(value) : "\"" + value + "\"";
+    }
+
+    private static void appendStateType(StringBuilder json, String key, String type, String value, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append("\"{state-").append(key).append("}\":{\"type\":\"").append(type).append("\",\"value\":")
+                .append(value).append(",\"lastChange\":1500000000}");
+    }
+
+    private static String sensorJson(Random random) {
+        StringBuilder json = new StringBuilder(
+                "{\"status\":\"success\",\"params\":{\"device\":{\"id\":\"{sensor}\",\"stateTypes\":{");
+        json.append("\"{t}\":{\"type\":\"temperature\",\"value\":").append(random.nextInt(400) / 10.0f).append("},");
+        json.append("\"{m}\":{\"type\":\"moisture\",\"value\":\"").append(random.nextInt(100)).append("\"},");
+        json.append("\"{b}\":{\"type\":\"brightness\",\"value\":").append(random.nextInt(100000)).append("},");
+        json.append("\"{x}\":{\"type\":\"battery\",\"value\":3.1}");
+        return json.append("}}}}").toString();
+    }
+
+    // Das Parsen aus Cube.getCircuits vor dem CubeResponseDecoder, unverändert bis auf die Http-Requests
+    private static class LegacyParser {
+        private static final Gson GSON = new GsonBuilder().setDateFormat("yyyy-MM-dd'T'HH:mm:ss").create();
+        private static final JsonParser PARSER = new JsonParser();
+
+        static List<Circuit> parseCircuits(String body) {
+            JsonObject data = PARSER.parse(body).getAsJsonObject().get("params").getAsJsonObject();
+            JsonObject c = PARSER.parse(data.toString()).getAsJsonObject().get("circuits").getAsJsonObject();
+            List<Circuit> circuitList = new ArrayList<>();
+            for (Entry<String, JsonElement> entry : c.entrySet()) {
+                Circuit circuit = GSON.fromJson(entry.getValue().toString(), Circuit.class);
+                JsonObject statetypes = PARSER.parse(entry.getValue().toString()).getAsJsonObject().get("stateTypes")
+                        .getAsJsonObject();
+                for (Entry<String, JsonElement> state : statetypes.entrySet()) {
+                    String type = PARSER.parse(state.getValue().toString()).getAsJsonObject().get("type")
+                            .getAsString();
+                    JsonElement value = PARSER.parse(state.getValue().toString()).getAsJsonObject().get("value");
+                    if (type.equals("irrigation")) {
+                        circuit.setIrrigation(value.getAsBoolean());
+                    } else if (type.equals("winterMode")) {
+                        circuit.setWintermode(value.getAsBoolean());
+                    } else if (type.equals("irrigationNextStart")) {
+                        circuit.setIrrigationStart(new DateTime(value.getAsLong() * 1000));
+                    } else if (type.equals("irrigationNextEnd")) {
+                        circuit.setIrrigationEnd(new DateTime(value.getAsLong() * 1000));
+                    } else if (type.equals("externBlock")) {
+                        circuit.setExternBlock(value.getAsBoolean());
+                    }
+                }
+                circuit.setOpenhabId(circuit.getId());
+                circuitList.add(circuit);
+            }
+            return circuitList;
+        }
+
+        static void applySensor(String body, Circuit circuit) {
+            JsonObject params = PARSER.parse(body).getAsJsonObject().get("params").getAsJsonObject();
+            JsonObject device = PARSER.parse(params.toString()).getAsJsonObject().get("device").getAsJsonObject();
+            JsonObject states = PARSER.parse(device.toString()).getAsJsonObject().get("stateTypes").getAsJsonObject();
+            for (Entry<String, JsonElement> element : states.entrySet()) {
+                String type = PARSER.parse(element.getValue().toString()).getAsJsonObject().get("type").getAsString();
+                JsonElement value = PARSER.parse(element.getValue().toString()).getAsJsonObject().get("value");
+                if (type.equals("temperature")) {
+                    circuit.setTemperature(value.getAsFloat());
+                } else if (type.equals("moisture")) {
+                    circuit.setMoisture(value.getAsFloat());
+                } else if (type.equals("brightness")) {
+                    circuit.setBrightness(value.getAsFloat());
+                }
+            }
+        }
+    }
+}
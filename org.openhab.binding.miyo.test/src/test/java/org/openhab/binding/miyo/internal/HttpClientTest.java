@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openhab.binding.miyo.internal.StubCubeServer.Response;
+import org.openhab.binding.miyo.internal.exceptions.HttpStatusException;
+
+/**
+ * {@link HttpClientTest} prüft die Keep-Alive Verbindungen von {@link HttpClient} und {@link AsyncHttpClient} gegen
+ * einen {@link StubCubeServer} und vergleicht sie mit einer Verbindung pro Request
+ *
+ *
+ *
+ */
+public class HttpClientTest {
+    private static final int POLLS = 20;
+    private static final int TIMEOUT = 2000;
+    private static final String CIRCUITS = "{\"status\":\"success\",\"params\":{\"circuits\":[]}}";
+
+    private StubCubeServer server;
+    private HttpClient http;
+    private AsyncHttpClient asyncHttp;
+
+    @After
+    public void tearDown() throws IOException {
+        if (http != null) {
+            http.close();
+        }
+        if (asyncHttp != null) {
+            asyncHttp.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void reusesConnectionAcrossPolls() throws Exception {
+        server = new StubCubeServer((method, path, body) -> Response.ok(CIRCUITS));
+        http = newHttpClient();
+
+        for (int i = 0; i < POLLS; i++) {
+            assertEquals(CIRCUITS, http.post(url("/api/circuit/all"), "").getBody());
+        }
+
+        assertEquals(POLLS, server.getRequestCount());
+        assertEquals("All polls should share one connection", 1, server.getConnectionCount());
+    }
+
+    @Test
+    public void reusesConnectionAcrossAsyncPolls() throws Exception {
+        server = new StubCubeServer((method, path, body) -> Response.ok(CIRCUITS));
+        asyncHttp = new AsyncHttpClient();
+        asyncHttp.setTimeout(TIMEOUT);
+
+        for (int i = 0; i < POLLS; i++) {
+            assertEquals(CIRCUITS, asyncHttp.post(url("/api/circuit/all"), "").get(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .getBody());
+        }
+
+        assertEquals(POLLS, server.getRequestCount());
+        assertEquals("All polls should share one connection", 1, server.getConnectionCount());
+    }
+
+    // Vergleich mit dem bisherigen Verhalten: kündigt der Cube jede Verbindung mit "Connection: close" an, braucht
+    // jeder Request einen eigenen Handshake
+    @Test
+    public void pooledPollsOpenFewerSocketsThanPerRequestConnections() throws Exception {
+        server = new StubCubeServer((method, path, body) -> Response.ok(CIRCUITS));
+        http = newHttpClient();
+        long pooledNanos = poll(http);
+        int pooledConnections = server.getConnectionCount();
+        http.close();
+        server.close();
+
+        server = new StubCubeServer((method, path, body) -> Response.ok(CIRCUITS).close());
+        http = newHttpClient();
+        long perRequestNanos = poll(http);
+        int perRequestConnections = server.getConnectionCount();
+
+        String timing = "pooled " + TimeUnit.NANOSECONDS.toMicros(pooledNanos / POLLS) + " us/request, per request "
+                + TimeUnit.NANOSECONDS.toMicros(perRequestNanos / POLLS) + " us/request";
+        assertEquals(timing, 1, pooledConnections);
+        assertEquals(timing, POLLS, perRequestConnections);
+    }
+
+    // Der Cube schließt eine Keep-Alive Verbindung ohne Ankündigung, der nächste Request wird einmal mit neuer
+    // Verbindung wiederholt
+    @Test
+    public void retriesStaleConnection() throws Exception {
+        server = new StubCubeServer((method, path, body) -> Response.ok(CIRCUITS).drop());
+        http = newHttpClient();
+
+        assertEquals(CIRCUITS, http.post(url("/api/circuit/all"), "").getBody());
+        // Dem Server Zeit geben, die Verbindung zu schließen, bevor sie wiederverwendet wird
+        Thread.sleep(50);
+        assertEquals(CIRCUITS, http.post(url("/api/circuit/all"), "").getBody());
+
+        assertEquals(2, server.getRequestCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    @Test
+    public void retriesStaleAsyncConnection() throws Exception {
+        server = new StubCubeServer((method, path, body) -> Response.ok(CIRCUITS).drop());
+        asyncHttp = new AsyncHttpClient();
+        asyncHttp.setTimeout(TIMEOUT);
+
+        assertEquals(CIRCUITS,
+                asyncHttp.post(url("/api/circuit/all"), "").get(TIMEOUT, TimeUnit.MILLISECONDS).getBody());
+        Thread.sleep(50);
+        assertEquals(CIRCUITS,
+                asyncHttp.post(url("/api/circuit/all"), "").get(TIMEOUT, TimeUnit.MILLISECONDS).getBody());
+
+        assertEquals(2, server.getRequestCount());
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    // Chunked und Content-Length abwechselnd auf derselben Verbindung, die Grenzen zwischen den Antworten müssen
+    // dabei genau eingehalten werden
+    @Test
+    public void decodesChunkedAndFixedLengthBodiesOnOneConnection() throws Exception {
+        server = new StubCubeServer((method, path, body) -> path.startsWith("/chunked")
+                ? Response.ok(path + " " + CIRCUITS).chunked()
+                : Response.ok(path + " " + CIRCUITS));
+        http = newHttpClient();
+        asyncHttp = new AsyncHttpClient();
+        asyncHttp.setTimeout(TIMEOUT);
+
+        for (int i = 0; i < 4; i++) {
+            String path = (i % 2 == 0 ? "/chunked/" : "/fixed/") + i;
+            assertEquals(path + " " + CIRCUITS, http.get(url(path)).getBody());
+            assertEquals(path + " " + CIRCUITS,
+                    asyncHttp.get(url(path)).get(TIMEOUT, TimeUnit.MILLISECONDS).getBody());
+        }
+
+        assertEquals(2, server.getConnectionCount());
+    }
+
+    // Eine Fehlerantwort ist vollständig gelesen, die Verbindung bleibt nutzbar
+    @Test
+    public void errorStatusKeepsConnectionReusable() throws Exception {
+        server = new StubCubeServer((method, path, body) -> path.startsWith("/missing")
+                ? new Response(404, "{\"error\":\"not found\"}")
+                : Response.ok(CIRCUITS));
+        http = newHttpClient();
+
+        try {
+            http.get(url("/missing"));
+            fail("A 404 should fail the request");
+        } catch (HttpStatusException e) {
+            assertEquals(404, e.getStatusCode());
+        }
+        assertEquals(CIRCUITS, http.get(url("/api/circuit/all")).getBody());
+
+        assertEquals(1, server.getConnectionCount());
+    }
+
+    private HttpClient newHttpClient() {
+        HttpClient client = new HttpClient();
+        client.setTimeout(TIMEOUT);
+        return client;
+    }
+
+    private long poll(HttpClient client) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < POLLS; i++) {
+            client.post(url("/api/circuit/all"), "");
+        }
+        return System.nanoTime() - start;
+    }
+
+    private String url(String path) {
+        return "http://" + server.getAddress() + path;
+    }
+}
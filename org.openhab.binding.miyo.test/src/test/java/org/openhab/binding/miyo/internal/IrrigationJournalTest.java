@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link IrrigationJournalTest} prüft die Tagesstatistik, die aus den Einträgen des {@link IrrigationJournal}
+ * berechnet wird, auch nach dem erneuten Öffnen
+ *
+ *
+ *
+ */
+public class IrrigationJournalTest {
+    private static final DateTime DAY = new DateTime(2017, 6, 1, 0, 0);
+
+    private Path directory;
+    private IrrigationJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("miyo-journal");
+        journal = new IrrigationJournal(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void countsIrrigationsAndDurationPerDay() throws Exception {
+        Circuit circuit = TestCircuits.circuit("c1");
+        irrigate(circuit, DAY.plusHours(6), 15);
+        irrigate(circuit, DAY.plusHours(18), 20);
+        irrigate(circuit, DAY.plusDays(1).plusHours(6), 10);
+        // Andere Circuits zählen nicht mit
+        irrigate(TestCircuits.circuit("c2"), DAY.plusHours(7), 30);
+        close();
+        journal = new IrrigationJournal(directory);
+
+        List<IrrigationJournal.DailyStatistics> days = journal.getDailyStatistics(circuit.getOpenhabId(),
+                DAY.getMillis(), DAY.plusDays(2).getMillis());
+
+        assertEquals(2, days.size());
+        assertEquals(new LocalDate(DAY), days.get(0).getDay());
+        assertEquals(2, days.get(0).getCount());
+        assertEquals(TimeUnit.MINUTES.toMillis(35), days.get(0).getDuration());
+        assertEquals(new LocalDate(DAY.plusDays(1)), days.get(1).getDay());
+        assertEquals(1, days.get(1).getCount());
+        assertEquals(TimeUnit.MINUTES.toMillis(10), days.get(1).getDuration());
+    }
+
+    // Eine Bewässerung über Mitternacht zählt im abgefragten Tag ab dessen Beginn
+    @Test
+    public void countsIrrigationRunningAtStartOfRange() throws Exception {
+        Circuit circuit = TestCircuits.circuit("c1");
+        irrigate(circuit, DAY.minusMinutes(10), 30);
+        close();
+        journal = new IrrigationJournal(directory);
+
+        List<IrrigationJournal.DailyStatistics> days = journal.getDailyStatistics(circuit.getOpenhabId(),
+                DAY.getMillis(), DAY.plusDays(1).getMillis());
+
+        assertEquals(1, days.size());
+        assertEquals(1, days.get(0).getCount());
+        assertEquals(TimeUnit.MINUTES.toMillis(20), days.get(0).getDuration());
+    }
+
+    private void irrigate(Circuit circuit, DateTime start, int minutes) {
+        circuit.setIrrigation(true);
+        journal.update(circuit, start.getMillis());
+        circuit.setIrrigation(false);
+        journal.update(circuit, start.plusMinutes(minutes).getMillis());
+    }
+
+    private void close() throws InterruptedException {
+        journal.close();
+        assertTrue(journal.awaitClosed(5, TimeUnit.SECONDS));
+        assertEquals(0, journal.getDroppedUpdates());
+    }
+}
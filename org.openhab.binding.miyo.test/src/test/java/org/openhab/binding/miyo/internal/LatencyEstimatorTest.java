@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * {@link LatencyEstimatorTest} prüft die aus den Antwortzeiten abgeleiteten Timeouts des {@link LatencyEstimator},
+ * ihre Begrenzung auf [min, max] und die Verdopplung nach einem Timeout
+ *
+ *
+ *
+ */
+public class LatencyEstimatorTest {
+    private static final String CIRCUITS = "/api/circuit/all";
+    private static final String SENSORS = "/api/sensor/status";
+    private static final int MIN = 50;
+    private static final int MAX = 5000;
+
+    @Test
+    public void usesMaxWithoutMeasurement() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX);
+
+        assertEquals(MAX, estimator.getTimeout(CIRCUITS));
+
+        // Ein Timeout ohne vorherige Antwort ändert daran nichts
+        estimator.recordTimeout(CIRCUITS);
+        assertEquals(MAX, estimator.getTimeout(CIRCUITS));
+    }
+
+    // Erste Messung: Mittelwert 100, Abweichung 50, Timeout 100 + 4 * 50
+    @Test
+    public void derivesTimeoutFromAverageAndDeviation() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX);
+
+        estimator.recordLatency(CIRCUITS, 100);
+        assertEquals(300, estimator.getTimeout(CIRCUITS));
+
+        // Abweichung 0.75 * 50 + 0.25 * 100 = 62.5, Mittelwert 0.875 * 100 + 0.125 * 200 = 112.5
+        estimator.recordLatency(CIRCUITS, 200);
+        assertEquals(363, estimator.getTimeout(CIRCUITS));
+    }
+
+    // Gleichmäßige Antworten führen zum Mittelwert plus der Mindestabweichung von 10 ms
+    @Test
+    public void convergesToLatencyOfHealthyCube() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX);
+
+        for (int i = 0; i < 100; i++) {
+            estimator.recordLatency(CIRCUITS, 100);
+        }
+
+        assertEquals(110, estimator.getTimeout(CIRCUITS));
+    }
+
+    @Test
+    public void keepsEndpointsApart() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX);
+
+        estimator.recordLatency(CIRCUITS, 100);
+        estimator.recordLatency(SENSORS, 1000);
+        estimator.recordTimeout(SENSORS);
+
+        assertEquals(300, estimator.getTimeout(CIRCUITS));
+        assertEquals(MAX, estimator.getTimeout(SENSORS));
+    }
+
+    @Test
+    public void clampsToMin() {
+        LatencyEstimator estimator = new LatencyEstimator(500, MAX);
+
+        for (int i = 0; i < 100; i++) {
+            estimator.recordLatency(CIRCUITS, 5);
+        }
+
+        assertEquals(500, estimator.getTimeout(CIRCUITS));
+    }
+
+    @Test
+    public void clampsToMax() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX);
+
+        estimator.recordLatency(CIRCUITS, 4000);
+
+        assertEquals(MAX, estimator.getTimeout(CIRCUITS));
+    }
+
+    // Ist min größer als max, gilt max als fester Timeout
+    @Test
+    public void minAboveMaxMeansFixedTimeout() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX);
+        estimator.setBounds(3000, 1000);
+
+        assertEquals(1000, estimator.getTimeout(CIRCUITS));
+        estimator.recordLatency(CIRCUITS, 10);
+        assertEquals(1000, estimator.getTimeout(CIRCUITS));
+    }
+
+    // Jeder Timeout verdoppelt den Wert bis max, die nächste Antwort setzt ihn zurück
+    @Test
+    public void backsOffAfterTimeoutUntilNextResponse() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX);
+        for (int i = 0; i < 100; i++) {
+            estimator.recordLatency(CIRCUITS, 100);
+        }
+
+        estimator.recordTimeout(CIRCUITS);
+        assertEquals(220, estimator.getTimeout(CIRCUITS));
+        estimator.recordTimeout(CIRCUITS);
+        assertEquals(440, estimator.getTimeout(CIRCUITS));
+        for (int i = 0; i < 10; i++) {
+            estimator.recordTimeout(CIRCUITS);
+        }
+        assertEquals(MAX, estimator.getTimeout(CIRCUITS));
+
+        estimator.recordLatency(CIRCUITS, 100);
+        assertEquals(110, estimator.getTimeout(CIRCUITS));
+    }
+
+    // Die Verdopplung ist auf 2^6 begrenzt, ein großes max wird daher nicht erreicht
+    @Test
+    public void limitsBackoff() {
+        LatencyEstimator estimator = new LatencyEstimator(MIN, 60000);
+        for (int i = 0; i < 100; i++) {
+            estimator.recordLatency(CIRCUITS, 100);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            estimator.recordTimeout(CIRCUITS);
+        }
+
+        assertEquals(110 * 64, estimator.getTimeout(CIRCUITS));
+    }
+
+    @Test
+    public void countsTimeoutsInMetrics() {
+        CubeMetrics metrics = new CubeMetrics();
+        LatencyEstimator estimator = new LatencyEstimator(MIN, MAX, metrics);
+
+        estimator.recordLatency(CIRCUITS, 100);
+        estimator.recordTimeout(CIRCUITS);
+        estimator.recordTimeout(SENSORS);
+
+        assertEquals(2, metrics.getRequestTimeouts());
+    }
+}
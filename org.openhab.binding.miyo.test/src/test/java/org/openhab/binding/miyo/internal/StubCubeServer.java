@@ -0,0 +1,196 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link StubCubeServer} ein minimaler HTTP/1.1 Server, der wie ein Cube auf Requests antwortet und die
+ * angenommenen Verbindungen zählt
+ *
+ *
+ *
+ */
+class StubCubeServer implements Closeable {
+
+    interface Handler {
+        Response handle(String method, String path, String body);
+    }
+
+    static class Response {
+        private final int status;
+        private final String body;
+        private boolean chunked;
+        // Sendet "Connection: close" und schließt danach
+        private boolean close;
+        // Schließt die Verbindung nach der Antwort ohne Ankündigung, wie ein Cube nach Ablauf seines Keep-Alive
+        private boolean drop;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        static Response ok(String body) {
+            return new Response(200, body);
+        }
+
+        Response chunked() {
+            chunked = true;
+            return this;
+        }
+
+        Response close() {
+            close = true;
+            return this;
+        }
+
+        Response drop() {
+            drop = true;
+            return this;
+        }
+    }
+
+    private final ServerSocket server;
+    private final Handler handler;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    StubCubeServer(Handler handler) throws IOException {
+        this.handler = handler;
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    sockets.add(socket);
+                    connections.incrementAndGet();
+                    Thread connection = new Thread(() -> serve(socket), "stub-cube-connection");
+                    connection.setDaemon(true);
+                    connection.start();
+                }
+            } catch (IOException e) {
+                // Server geschlossen
+            }
+        }, "stub-cube");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // host:port wie in der Konfiguration des Cubes
+    String getAddress() {
+        return InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getLocalPort();
+    }
+
+    int getConnectionCount() {
+        return connections.get();
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                int contentLength = 0;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                for (int read = 0; read < contentLength;) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                requests.incrementAndGet();
+                String[] parts = requestLine.split(" ");
+                Response response = handler.handle(parts[0], parts[1], new String(body, StandardCharsets.UTF_8));
+                write(out, response);
+                if (response.close || response.drop) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Verbindung vom Client oder beim close() geschlossen
+        }
+    }
+
+    private static void write(OutputStream out, Response response) throws IOException {
+        byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(response.status < 400 ? " OK" : " Error")
+                .append("\r\n");
+        head.append("Content-Type: application/json\r\n");
+        if (response.close) {
+            head.append("Connection: close\r\n");
+        }
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        if (response.chunked) {
+            head.append("Transfer-Encoding: chunked\r\n\r\n");
+            message.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            // Zwei Chunks, der erste mit Extension, danach ein Trailer
+            int half = body.length / 2;
+            message.write((Integer.toHexString(half) + ";ext=1\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            message.write(body, 0, half);
+            message.write(("\r\n" + Integer.toHexString(body.length - half) + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            message.write(body, half, body.length - half);
+            message.write("\r\n0\r\nX-Trailer: 1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        } else {
+            head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+            message.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+            message.write(body);
+        }
+        out.write(message.toByteArray());
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                String result = line.toString("ISO-8859-1");
+                return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+            }
+            line.write(c);
+        }
+        return null;
+    }
+}
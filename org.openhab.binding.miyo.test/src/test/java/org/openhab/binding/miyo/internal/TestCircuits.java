@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+/**
+ * {@link TestCircuits} erzeugt Circuits für Tests außerhalb des internal Packages
+ *
+ *
+ *
+ */
+public class TestCircuits {
+
+    private TestCircuits() {
+    }
+
+    public static Circuit circuit(String openhabId) {
+        Circuit circuit = new Circuit();
+        // setOpenhabId schneidet das erste und die letzten beiden Zeichen der Id des Cubes ab
+        circuit.setId("{" + openhabId + "}:");
+        circuit.setOpenhabId(circuit.getId());
+        circuit.setName("Circuit " + openhabId);
+        return circuit;
+    }
+
+    public static Circuit circuit(String openhabId, boolean irrigation) {
+        Circuit circuit = circuit(openhabId);
+        circuit.setIrrigation(irrigation);
+        return circuit;
+    }
+}
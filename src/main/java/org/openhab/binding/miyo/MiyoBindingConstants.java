@@ -38,13 +38,31 @@ public class MiyoBindingConstants {
     public static final String CHANNEL_HUMIDITY = "getHumidity";
     public static final String CHANNEL_EXTERNBLOCK = "getExternBlock";
     public static final String CHANNEL_CONSIDERMOWER = "getConsiderMower";
+    public static final String CHANNEL_HUMIDITY_AVERAGE = "getHumidityAverage";
+    public static final String CHANNEL_HUMIDITY_TREND = "getHumidityTrend";
+    public static final String CHANNEL_TEMPERATURE_AVERAGE = "getTemperatureAverage";
+    public static final String CHANNEL_IRRIGATIONS_TODAY = "getIrrigationsToday";
+    public static final String CHANNEL_IRRIGATION_DURATION_TODAY = "getIrrigationDurationToday";
+
+    // Channel ids der Bridge
+    public static final String CHANNEL_ALL_WINTERMODE = "setAllWintermode";
+    public static final String CHANNEL_STOP_ALL_IRRIGATION = "stopAllIrrigation";
+    public static final String CHANNEL_BULK_RESULT = "getBulkResult";
 
     // Bridge bzw. Cube config properties
     public static final String HOST = "ipAddress";
     public static final String USER_NAME = "userName";
     public static final String POLLING_INTERVAL = "pollingInterval";
+    public static final String FAST_POLLING_INTERVAL = "fastPollingInterval";
+    public static final String SLOW_POLLING_INTERVAL = "slowPollingInterval";
+    public static final String IRRIGATION_WINDOW = "irrigationWindow";
+    public static final String SENSOR_REFRESH_INTERVAL = "sensorRefreshInterval";
+    public static final String SNAPSHOT_MAX_AGE = "snapshotMaxAge";
+    public static final String MIN_REQUEST_TIMEOUT = "minRequestTimeout";
+    public static final String MAX_REQUEST_TIMEOUT = "maxRequestTimeout";
 
     // Circuit config properties
     public static final String CIRCUIT_ID = "circuitId";
+    public static final String HISTORY_WINDOW = "historyWindow";
 
 }
@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.handler;
+
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.miyo.internal.Circuit;
+import org.openhab.binding.miyo.internal.CircuitField;
+import org.openhab.binding.miyo.internal.Cube;
+import org.openhab.binding.miyo.internal.CubeMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link CircuitEventDispatcher} stellt die Circuit-Events asynchron zu, damit ein langsamer Listener nicht den
+ * Poll des Cubes aufhält
+ *
+ * Jeder Listener hat eine eigene, begrenzte Queue. Noch nicht zugestellte Events desselben Circuits werden zum
+ * neuesten Stand zusammengefasst. Zugestellt wird erst nach {@link #start()}, nach {@link #shutdown()} werden neue
+ * Events verworfen. Die Zähler für zugestellte, zusammengefasste, verworfene und wartende Events gehen an die
+ * {@link CubeMetrics}.
+ *
+ */
+@NonNullByDefault
+class CircuitEventDispatcher {
+
+    enum EventType {
+        ADDED,
+        CHANGED,
+        REMOVED
+    }
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final int DISPATCH_THREADS = 2;
+
+    private final Logger logger = LoggerFactory.getLogger(CircuitEventDispatcher.class);
+
+    private final Map<CircuitStatusListener, ListenerQueue> queues = new ConcurrentHashMap<>();
+
+    private final String name;
+
+    private final int queueCapacity;
+
+    private final CubeMetrics metrics;
+
+    private @Nullable ThreadPoolExecutor executor;
+
+    // Noch nicht zugestellte Events aller Listener
+    private final AtomicInteger queued = new AtomicInteger();
+
+    CircuitEventDispatcher(String name, CubeMetrics metrics) {
+        this(name, DEFAULT_QUEUE_CAPACITY, metrics);
+    }
+
+    CircuitEventDispatcher(String name, int queueCapacity, CubeMetrics metrics) {
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.metrics = metrics;
+    }
+
+    // Startet die Threads für die Zustellung, auch nach einem shutdown
+    synchronized void start() {
+        if (executor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DISPATCH_THREADS, DISPATCH_THREADS, 60,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "MIYO-events-" + name);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            // Ohne Events beenden sich die Threads nach 60s
+            executor.allowCoreThreadTimeOut(true);
+            this.executor = executor;
+        }
+    }
+
+    // Verwirft alle noch nicht zugestellten Events und beendet die Threads, sobald laufende Zustellungen fertig sind
+    void shutdown() {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = this.executor;
+            this.executor = null;
+        }
+        for (ListenerQueue queue : queues.values()) {
+            queue.clear();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    void dispatch(CircuitStatusListener listener, @Nullable Cube cube, Circuit circuit, EventType type,
+            Set<CircuitField> changes) {
+        ListenerQueue queue = queues.computeIfAbsent(listener, ListenerQueue::new);
+        if (queue.offer(new Event(cube, circuit, type, changes))) {
+            ThreadPoolExecutor executor;
+            synchronized (this) {
+                executor = this.executor;
+            }
+            try {
+                if (executor == null) {
+                    throw new RejectedExecutionException("Dispatcher is not running");
+                }
+                executor.execute(queue);
+            } catch (RejectedExecutionException e) {
+                // Nicht gestartet oder schon beendet, die Events werden nicht mehr zugestellt
+                metrics.recordEventsDropped(queue.reject());
+            }
+        }
+    }
+
+    // Verwirft die noch nicht zugestellten Events eines Listeners, z.B. wenn er sich abmeldet
+    void remove(CircuitStatusListener listener) {
+        ListenerQueue queue = queues.remove(listener);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    int getQueueDepth() {
+        return queued.get();
+    }
+
+    private static class Event {
+        private final @Nullable Cube cube;
+        private final Circuit circuit;
+        private final EventType type;
+        private final Set<CircuitField> changes;
+
+        private Event(@Nullable Cube cube, Circuit circuit, EventType type, Set<CircuitField> changes) {
+            this.cube = cube;
+            this.circuit = circuit;
+            this.type = type;
+            this.changes = changes;
+        }
+
+        // Fasst ein noch wartendes Event mit dem neuen Event desselben Circuits zusammen
+        private Event merge(Event next) {
+            if (type == EventType.CHANGED && next.type == EventType.CHANGED) {
+                Set<CircuitField> merged = EnumSet.noneOf(CircuitField.class);
+                merged.addAll(changes);
+                merged.addAll(next.changes);
+                return new Event(next.cube, next.circuit, EventType.CHANGED, merged);
+            }
+            if (next.type == EventType.CHANGED) {
+                // Ein noch nicht zugestelltes ADDED enthält bereits alle Werte
+                return new Event(next.cube, next.circuit, type, changes);
+            }
+            return next;
+        }
+    }
+
+    private class ListenerQueue implements Runnable {
+        private final CircuitStatusListener listener;
+        private final LinkedHashMap<String, Event> pending = new LinkedHashMap<>();
+        private boolean scheduled;
+
+        private ListenerQueue(CircuitStatusListener listener) {
+            this.listener = listener;
+        }
+
+        // Liefert true, wenn die Queue zur Zustellung eingeplant werden muss
+        private synchronized boolean offer(Event event) {
+            String circuitId = event.circuit.getOpenhabId();
+            Event previous = pending.get(circuitId);
+            if (previous != null) {
+                pending.put(circuitId, previous.merge(event));
+                metrics.recordEventCoalesced();
+            } else if (pending.size() >= queueCapacity) {
+                metrics.recordEventsDropped(1);
+                logger.warn("Event queue of {} is full, dropping {} event for circuit {}", listener, event.type,
+                        circuitId);
+                return false;
+            } else {
+                pending.put(circuitId, event);
+                metrics.recordEventQueueDepth(queued.incrementAndGet());
+            }
+            if (scheduled) {
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        private synchronized @Nullable Event poll() {
+            Iterator<Event> it = pending.values().iterator();
+            if (!it.hasNext()) {
+                scheduled = false;
+                return null;
+            }
+            Event event = it.next();
+            it.remove();
+            metrics.recordEventQueueDepth(queued.decrementAndGet());
+            return event;
+        }
+
+        // Liefert die Zahl der verworfenen Events
+        private synchronized int clear() {
+            int size = pending.size();
+            pending.clear();
+            if (size > 0) {
+                metrics.recordEventQueueDepth(queued.addAndGet(-size));
+            }
+            return size;
+        }
+
+        // Die Queue konnte nicht eingeplant werden, kein Thread arbeitet sie ab
+        private synchronized int reject() {
+            scheduled = false;
+            return clear();
+        }
+
+        @Override
+        public void run() {
+            Event event;
+            while ((event = poll()) != null) {
+                deliver(event);
+            }
+        }
+
+        private void deliver(Event event) {
+            try {
+                switch (event.type) {
+                    case ADDED:
+                        logger.debug("Sending circuitAdded for circuit: {}", event.circuit.getOpenhabId());
+                        listener.onCircuitAdded(event.cube, event.circuit);
+                        break;
+                    case CHANGED:
+                        logger.debug("Sending circuitState changed for circuit: {}", event.circuit.getOpenhabId());
+                        listener.onCircuitStateChanged(event.cube, event.circuit, event.changes);
+                        break;
+                    case REMOVED:
+                        listener.onCircuitRemoved(event.cube, event.circuit);
+                        break;
+                }
+                metrics.recordEventDispatched();
+            } catch (Exception e) {
+                logger.error("An exception occurred while calling the MIYOcubeHeartListener", e);
+            }
+        }
+    }
+}
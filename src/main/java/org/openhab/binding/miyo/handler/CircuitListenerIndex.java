@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.handler;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+
+/**
+ * {@link CircuitListenerIndex} ordnet die Listener des {@link CubeHandler} den Circuits zu, für die sie sich
+ * interessieren
+ *
+ * Ein Event geht nur an die Listener seines Circuits und an die Listener für alle Circuits (z.B. Discovery), so dass
+ * die Kosten pro Event nicht mit der Zahl der Handler wachsen.
+ *
+ */
+@NonNullByDefault
+class CircuitListenerIndex {
+    // Listener für alle Circuits
+    private final List<CircuitStatusListener> allCircuits = new CopyOnWriteArrayList<>();
+
+    // Listener für einzelne Circuits, nach openhabId
+    private final Map<String, List<CircuitStatusListener>> byCircuit = new ConcurrentHashMap<>();
+
+    boolean add(CircuitStatusListener listener) {
+        return allCircuits.add(listener);
+    }
+
+    boolean add(String circuitId, CircuitStatusListener listener) {
+        boolean[] added = new boolean[1];
+        byCircuit.compute(circuitId, (id, listeners) -> {
+            List<CircuitStatusListener> result = listeners != null ? listeners : new CopyOnWriteArrayList<>();
+            added[0] = result.add(listener);
+            return result;
+        });
+        return added[0];
+    }
+
+    boolean remove(CircuitStatusListener listener) {
+        return allCircuits.remove(listener);
+    }
+
+    // Ohne Listener verschwindet auch der Eintrag des Circuits
+    boolean remove(String circuitId, CircuitStatusListener listener) {
+        boolean[] removed = new boolean[1];
+        byCircuit.computeIfPresent(circuitId, (id, listeners) -> {
+            removed[0] = listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+        return removed[0];
+    }
+
+    // Ruft action für alle Listener auf, die Events des Circuits bekommen
+    void forEach(String circuitId, Consumer<CircuitStatusListener> action) {
+        allCircuits.forEach(action);
+        List<CircuitStatusListener> listeners = byCircuit.get(circuitId);
+        if (listeners != null) {
+            listeners.forEach(action);
+        }
+    }
+
+    boolean hasListeners(String circuitId) {
+        return !allCircuits.isEmpty() || byCircuit.containsKey(circuitId);
+    }
+
+    // Zahl der Circuits mit eigenen Listenern
+    int getCircuitCount() {
+        return byCircuit.size();
+    }
+}
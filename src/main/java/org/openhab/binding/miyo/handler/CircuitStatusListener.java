@@ -8,9 +8,12 @@
  */
 package org.openhab.binding.miyo.handler;
 
+import java.util.Set;
+
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.openhab.binding.miyo.internal.Circuit;
+import org.openhab.binding.miyo.internal.CircuitField;
 import org.openhab.binding.miyo.internal.Cube;
 
 /**
@@ -23,6 +26,11 @@ public interface CircuitStatusListener {
 
     void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit);
 
+    // Wird nur mit den Werten aufgerufen, die sich seit dem letzten Poll geändert haben
+    default void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit, Set<CircuitField> changes) {
+        onCircuitStateChanged(cube, circuit);
+    }
+
     void onCircuitRemoved(@Nullable Cube cube, Circuit circuit);
 
     void onCircuitAdded(@Nullable Cube cube, Circuit circuit);
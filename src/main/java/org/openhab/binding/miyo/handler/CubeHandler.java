@@ -12,20 +12,27 @@ import static org.openhab.binding.miyo.MiyoBindingConstants.*;
 
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jdt.annotation.Nullable;
+import org.eclipse.smarthome.config.core.ConfigConstants;
 import org.eclipse.smarthome.config.core.Configuration;
 import org.eclipse.smarthome.config.core.status.ConfigStatusMessage;
 import org.eclipse.smarthome.core.thing.Bridge;
@@ -33,13 +40,24 @@ import org.eclipse.smarthome.core.thing.ChannelUID;
 import org.eclipse.smarthome.core.thing.ThingStatus;
 import org.eclipse.smarthome.core.thing.ThingStatusDetail;
 import org.eclipse.smarthome.core.thing.ThingTypeUID;
+import org.eclipse.smarthome.core.library.types.OnOffType;
+import org.eclipse.smarthome.core.library.types.StringType;
 import org.eclipse.smarthome.core.thing.binding.ConfigStatusBridgeHandler;
 import org.eclipse.smarthome.core.types.Command;
+import org.openhab.binding.miyo.handler.CircuitEventDispatcher.EventType;
 import org.openhab.binding.miyo.internal.Circuit;
-import org.openhab.binding.miyo.internal.State;
+import org.openhab.binding.miyo.internal.CircuitField;
+import org.openhab.binding.miyo.internal.CircuitSnapshotStore;
+import org.openhab.binding.miyo.internal.CircuitStateStore;
+import org.openhab.binding.miyo.internal.ConnectionBreaker;
 import org.openhab.binding.miyo.internal.StateUpdate;
 import org.openhab.binding.miyo.internal.Cube;
 import org.openhab.binding.miyo.internal.CubeConfigStatusMessage;
+import org.openhab.binding.miyo.internal.CubeMetrics;
+import org.openhab.binding.miyo.internal.IrrigationJournal;
+import org.openhab.binding.miyo.internal.ProbeResult;
+import org.openhab.binding.miyo.internal.RequestPriority;
+import org.openhab.binding.miyo.internal.SensorHistory;
 import org.openhab.binding.miyo.internal.exceptions.ApiException;
 import org.openhab.binding.miyo.internal.exceptions.IrrigationException;
 import org.openhab.binding.miyo.internal.exceptions.LinkButtonException;
@@ -56,28 +74,154 @@ import org.slf4j.LoggerFactory;
 // @NonNullByDefault
 public class CubeHandler extends ConfigStatusBridgeHandler {
 
-    private final String CIRCUIT_STATE_ADDED = "added";
+    private static final Set<CircuitField> ALL_FIELDS = Collections.unmodifiableSet(EnumSet.allOf(CircuitField.class));
 
-    private final String CIRCUIT_STATE_CHANGED = "changed";
+    // Felder, die per Befehl gesetzt und danach bestätigt werden
+    private static final Set<CircuitField> CONFIRMABLE_FIELDS = Collections
+            .unmodifiableSet(EnumSet.of(CircuitField.IRRIGATION, CircuitField.WINTERMODE));
 
     public final static Set<ThingTypeUID> SUPPORTED_THING_TYPES = Collections.singleton(THING_TYPE_BRIDGE);
 
     private static final int DEFAULT_POLLING_INTERVAL = 10;
 
+    private static final int DEFAULT_FAST_POLLING_INTERVAL = 2;
+
+    private static final int DEFAULT_SLOW_POLLING_INTERVAL = 60;
+
+    private static final int DEFAULT_IRRIGATION_WINDOW = 60;
+
+    // Der Cube schaltet nicht exakt zur angekündigten Zeit um
+    private static final long TIMELINE_GRACE = 2000;
+
+    // So lange wird nach einem Befehl auf die Bestätigung durch den Cube gewartet
+    private static final long CONFIRMATION_TIMEOUT = 15000;
+
+    // Pollintervall, solange ein Befehl noch nicht bestätigt ist
+    private static final long CONFIRMATION_POLLING_INTERVAL = 1000;
+
+    private static final long METRICS_PUBLISH_INTERVAL = 60000;
+
+    // Frühestens so oft wird bei offenem Breaker geprüft, ob eine Probe gesendet werden darf
+    private static final long BREAKER_CHECK_INTERVAL = 500;
+
+    // Threads pro Cube für blockierende Arbeit, wie die Verbindungen zum Cube
+    private static final int IO_THREADS = 4;
+
+    // Zeitfenster, in dem Befehle an denselben Circuit zusammengefasst werden
+    private static final long COMMAND_DEBOUNCE = 250;
+
+    // Die Sensorwerte sind im Cube gecacht, pro Circuit wird höchstens jede Minute ein Wert aufgezeichnet
+    private static final long SENSOR_SAMPLE_INTERVAL = 60000;
+
+    private static final int DEFAULT_SENSOR_REFRESH_INTERVAL = 300;
+
+    private static final int DEFAULT_SNAPSHOT_MAX_AGE = 5;
+
+    // So lange wartet ein erneutes initialize auf den Writer des zuvor geschlossenen Journals
+    private static final long JOURNAL_CLOSE_TIMEOUT = 5000;
+
+    // Der Snapshot wird höchstens so oft geschrieben, zuletzt beim dispose
+    private static final long SNAPSHOT_SAVE_INTERVAL = 60000;
+
+    // Grenzen der aus den Antwortzeiten abgeleiteten Timeouts, in ms
+    private static final int DEFAULT_MIN_REQUEST_TIMEOUT = 500;
+
+    private static final int DEFAULT_MAX_REQUEST_TIMEOUT = 5000;
+
     public static final String DEVICE_TYPE = "EclipseSmartHome";
 
     private final Logger logger = LoggerFactory.getLogger(Cube.class);
 
-    private boolean lastCubeConnectionState = false;
+    // Wird im Poll, in den Callbacks der asynchronen Requests und bei Befehlen gelesen und geschrieben. Ein
+    // gleichzeitiges Zurücksetzen auf false ist unkritisch, der nächste Poll baut die Verbindung wieder auf
+    private volatile boolean lastCubeConnectionState = false;
+
+    // Einziger gehaltener Stand aller Circuits: angezeigt inklusive offener Befehle, dazu der vom Cube gemeldete Stand
+    // für Snapshot und Rollback. Circuit Objekte für Listener und getCircuitById entstehen daraus beim Lesen
+    private final CircuitStateStore circuitStates = new CircuitStateStore();
+
+    // Verlauf der Sensorwerte nach openhabId
+    private final Map<String, SensorHistory> sensorHistories = new ConcurrentHashMap<>();
 
-    private final Map<String, Circuit> lastCircuitStates = new ConcurrentHashMap<>();
+    // Listener nach Circuit, dazu die Listener für alle Circuits (z.B. Discovery)
+    private final CircuitListenerIndex circuitStatusListeners = new CircuitListenerIndex();
 
-    private final List<CircuitStatusListener> circuitStatusListeners = new CopyOnWriteArrayList<>();
+    // Stellt die Events asynchron zu, damit ein langsamer Listener den Poll nicht blockiert
+    private final CircuitEventDispatcher dispatcher;
 
     private @Nullable ScheduledFuture<?> pollingJob;
 
+    // true solange gepollt wird, der Poll plant sich danach jeweils selbst neu ein
+    private volatile boolean polling;
+
+    // Verhindert, dass sich zwei Polls überschneiden, auch während auf die Antwort des Cubes gewartet wird
+    private final AtomicBoolean pollInFlight = new AtomicBoolean();
+
+    // Schützt den Stand der Circuits (circuitStates, pendingCommands), damit die Auswertung eines Polls und
+    // optimistische Änderungen nacheinander laufen. Wird nie gehalten, während auf den Cube gewartet wird
+    private final Object stateLock = new Object();
+
+    // Wird nach einem Befehl gesetzt, damit der Stand sofort nachgelesen wird
+    private final AtomicBoolean pollRequested = new AtomicBoolean();
+
+    private volatile RequestPriority pollPriority = RequestPriority.POLL;
+
+    // Intervalle in ms
+    private long pollingInterval;
+
+    private long fastPollingInterval;
+
+    private long slowPollingInterval;
+
+    private long irrigationWindow;
+
+    // Anstehende Start- und Endzeiten, zu denen zusätzlich gepollt wird
+    private final IrrigationTimeline timeline = new IrrigationTimeline();
+
+    private @Nullable ScheduledFuture<?> timelineJob;
+
+    private long timelineJobInstant;
+
+    // Befehle, deren Ergebnis der Cube noch nicht gemeldet hat, nach openhabId und Feld
+    private final Map<String, PendingCommand> pendingCommands = new ConcurrentHashMap<>();
+
+    private final CubeMetrics metrics = new CubeMetrics();
+
+    // Noch nicht gesendete Befehle nach openhabId
+    private final Map<String, PendingUpdate> pendingUpdates = new HashMap<>();
+
+    // Letzte noch laufende Sendung pro openhabId, die nächste startet erst danach. Geschützt durch pendingUpdates
+    private final Map<String, CompletableFuture<Void>> sendTails = new HashMap<>();
+
+    private long lastMetricsPublish;
+
+    private ConnectionBreaker.State publishedBreakerState;
+
     private Cube cube = null;
 
+    private @Nullable CircuitSnapshotStore snapshotStore;
+
+    private final Object snapshotLock = new Object();
+
+    // Seit dem letzten Schreiben des Snapshots hat sich ein Circuit geändert
+    private volatile boolean snapshotDirty;
+
+    private long lastSnapshotSave;
+
+    // Wird unter journalLock geöffnet und geschlossen
+    private volatile @Nullable IrrigationJournal journal;
+
+    // Geschlossenes Journal, dessen Writer evtl. noch schreibt
+    private volatile @Nullable IrrigationJournal closedJournal;
+
+    private final Object journalLock = new Object();
+
+    // Wird von initialize und dispose erhöht; der Start einer früheren Initialisierung bricht dann ab
+    private volatile int generation;
+
+    // Blockierende Arbeit läuft hier statt auf dem Scheduler, den alle Bindings teilen
+    private @Nullable CubeIoExecutor ioExecutor;
+
     private final Runnable pollingRunnable = new Runnable() {
 
         @Override
@@ -87,168 +231,785 @@ public class CubeHandler extends ConfigStatusBridgeHandler {
                     lastCubeConnectionState = tryResumeBridgeConnection();
                 }
                 if (lastCubeConnectionState) {
-                    Map<String, Circuit> lastCircuitStateCopy = new HashMap<>(lastCircuitStates);
-                    for (final Circuit circuit : cube.getCircuits()) {
-                        final String circuitId = circuit.getOpenhabId();
-                        if (lastCircuitStateCopy.containsKey(circuitId)) {
-                            final Circuit lastCircuit = lastCircuitStateCopy.remove(circuitId);
-                            lastCircuitStates.put(circuitId, circuit);
-                            if (!isEqual(lastCircuit, circuit) || circuit.getWintermode()) {
-                                logger.debug("Status update for Circuit: {} detected.", circuitId);
-                                notifyCircuitStatusListeners(circuit, CIRCUIT_STATE_CHANGED);
-                            }
-                        } else {
-                            lastCircuitStates.put(circuitId, circuit);
-                            logger.debug("Circuit {} added.", circuitId);
-                            notifyCircuitStatusListeners(circuit, CIRCUIT_STATE_ADDED);
-                        }
-                    }
-                    // Check for removed Circuits
-                    for (Entry<String, Circuit> circuitEntry : lastCircuitStateCopy.entrySet()) {
-                        lastCircuitStates.remove(circuitEntry.getKey());
-                        logger.debug("Circuit {} removed.", circuitEntry.getKey());
-                        for (CircuitStatusListener circuitStatusListener : circuitStatusListeners) {
-                            try {
-                                circuitStatusListener.onCircuitRemoved(cube, circuitEntry.getValue());
-                            } catch (Exception e) {
-                                logger.error("An error ocurred while calling the CubeHeartListener", e);
-                            }
-                        }
-                    }
-                }
-            } catch (UnauthorizedException | IllegalStateException e) {
-                if (isReachable(cube.getIp())) {
-                    lastCubeConnectionState = false;
-                    onNotAuthenticated();
-                } else {
-                    if (lastCubeConnectionState || thing.getStatus() == ThingStatus.INITIALIZING) {
-                        lastCubeConnectionState = false;
-                        onConnectionLost();
-                    }
+                    updateCircuits(cube.getCircuits(pollPriority));
                 }
             } catch (Exception e) {
-                if (cube != null) {
-                    if (lastCubeConnectionState) {
-                        logger.debug("Connection to the MIYOCube {} lost.", cube.getIp());
-                        lastCubeConnectionState = false;
-                        onConnectionLost();
-                    }
-                }
+                // onPollFailure meldet sich bei Bedarf neu an, ein nicht erreichbarer Cube bekommt keine weiteren
+                // Requests
+                onPollFailure(e);
+                return;
             }
 
             if (!lastCubeConnectionState) {
                 onNotAuthenticated();
             }
         }
+    };
 
-        private boolean isReachable(String ipAddress) {
-            try {
-                cube.authenticate("invalid");
-            } catch (IOException e) {
-                return false;
-            } catch (ApiException e) {
-                if (e.getMessage().contains("SocketTimeout") || e.getMessage().contains("ConnectException")
-                        || e.getMessage().contains("SocketException")
-                        || e.getMessage().contains("NoRouteToHostException")) {
-                    return false;
-                } else {
-                    return true;
+    // Vergleicht die gepollten Circuits mit dem letzten Stand und meldet die Änderungen an die Listener
+    private void updateCircuits(List<Circuit> polledCircuits) {
+        long now = System.currentTimeMillis();
+        boolean changed;
+        synchronized (stateLock) {
+            changed = compareCircuits(polledCircuits, now);
+        }
+        scheduleTimelineRefresh();
+        if (changed) {
+            snapshotDirty = true;
+        }
+        saveSnapshot(false);
+    }
+
+    // Liefert true, wenn sich ein Circuit geändert hat oder hinzugekommen bzw. weggefallen ist
+    private boolean compareCircuits(List<Circuit> polledCircuits, long now) {
+        // Slots, die dieser Poll nicht mehr enthält, sind weggefallen
+        BitSet missing = circuitStates.getSlots();
+        boolean changed = false;
+        for (final Circuit polledCircuit : polledCircuits) {
+            final String circuitId = polledCircuit.getOpenhabId();
+            final Circuit circuit = confirmPendingCommands(polledCircuit, now);
+            recordSensorValues(polledCircuit, now);
+            recordTransitions(polledCircuit, now);
+            int slot = circuitStates.getSlot(circuitId);
+            if (slot >= 0) {
+                missing.clear(slot);
+                boolean stale = circuitStates.isStale(slot);
+                Set<CircuitField> changes = circuitStates.update(polledCircuit, circuit);
+                if (stale) {
+                    // Erster Poll nach dem Laden des Snapshots bestätigt den Circuit
+                    timeline.update(circuitId, circuit.getNextIrrigationStart(), circuit.getNextIrrigationEnd(), now);
+                    notifyCircuitStatusListeners(circuit, EventType.ADDED, ALL_FIELDS);
+                    changed = true;
+                } else if (!changes.isEmpty()) {
+                    changed = true;
+                    logger.debug("Status update for Circuit: {} detected: {}", circuitId, changes);
+                    if (changes.contains(CircuitField.NEXT_IRRIGATION_START)
+                            || changes.contains(CircuitField.NEXT_IRRIGATION_END)) {
+                        timeline.update(circuitId, circuit.getNextIrrigationStart(),
+                                circuit.getNextIrrigationEnd(), now);
+                    }
+                    notifyCircuitStatusListeners(circuit, EventType.CHANGED, changes);
                 }
+            } else {
+                circuitStates.update(polledCircuit, circuit);
+                timeline.update(circuitId, circuit.getNextIrrigationStart(), circuit.getNextIrrigationEnd(), now);
+                logger.debug("Circuit {} added.", circuitId);
+                changed = true;
+                notifyCircuitStatusListeners(circuit, EventType.ADDED, ALL_FIELDS);
             }
-            return true;
         }
-    };
+        // Check for removed Circuits
+        for (int slot = missing.nextSetBit(0); slot >= 0; slot = missing.nextSetBit(slot + 1)) {
+            Circuit removed = circuitStates.getCircuit(slot);
+            String circuitId = circuitStates.getCircuitId(slot);
+            circuitStates.remove(circuitId);
+            timeline.remove(circuitId);
+            sensorHistories.remove(circuitId);
+            pendingCommands.remove(pendingKey(circuitId, CircuitField.IRRIGATION));
+            pendingCommands.remove(pendingKey(circuitId, CircuitField.WINTERMODE));
+            logger.debug("Circuit {} removed.", circuitId);
+            changed = true;
+            notifyCircuitStatusListeners(removed, EventType.REMOVED, ALL_FIELDS);
+        }
+        return changed;
+    }
 
-    // Not needed
+    private void onPollFailure(Throwable e) {
+        if (!polling) {
+            // Von dispose abgebrochener Request, kein Verbindungsverlust
+            return;
+        }
+        final Cube cube = this.cube;
+        if (cube == null) {
+            return;
+        }
+        if (e instanceof UnauthorizedException || e instanceof IllegalStateException) {
+            if (cube.probe() != ProbeResult.UNREACHABLE) {
+                lastCubeConnectionState = false;
+                onNotAuthenticated();
+            } else {
+                if (lastCubeConnectionState || thing.getStatus() == ThingStatus.INITIALIZING) {
+                    lastCubeConnectionState = false;
+                    onConnectionLost();
+                }
+            }
+        } else if (lastCubeConnectionState) {
+            logger.debug("Connection to the MIYOCube {} lost.", cube.getIp());
+            lastCubeConnectionState = false;
+            onConnectionLost();
+        }
+    }
+
+    // Befehle an alle Circuits des Cubes
     @Override
     public void handleCommand(ChannelUID channelUID, Command command) {
+        switch (channelUID.getId()) {
+            case CHANNEL_ALL_WINTERMODE:
+                if (command instanceof OnOffType) {
+                    sendToAllCircuits(CircuitField.WINTERMODE, OnOffType.ON.equals(command));
+                }
+                break;
+            case CHANNEL_STOP_ALL_IRRIGATION:
+                if (OnOffType.ON.equals(command)) {
+                    sendToAllCircuits(CircuitField.IRRIGATION, false);
+                }
+                break;
+            default:
+                break;
+        }
     }
 
     public CubeHandler(Bridge cube) {
         super(cube);
+        dispatcher = new CircuitEventDispatcher(cube.getUID().getId(), metrics);
     }
 
-    public void updateCircuitState(Circuit circuit, StateUpdate stateUpdate) throws IrrigationException {
-        if (cube != null) {
-            String mode = (stateUpdate.commands.get(0).key);
-            if (mode.equals("mode")) {
-                try {
-                    cube.setIrrigation(circuit, stateUpdate);
-                } catch (IOException e) {
-                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, e.getMessage());
-                } catch (IrrigationException e) {
-                    throw new IrrigationException("Irrigation can not be turned on, if wintermode is activated");
-                } catch (ApiException e) {
-                    logger.warn("Error while accessing circuit: {}", e.getMessage(), e);
-                } catch (IllegalStateException e) {
-                    logger.trace("Error while accessing circuit: {}", e.getMessage());
-                }
-            } else if (mode.equals("winter")) {
-                try {
-                    cube.setWinter(circuit, stateUpdate);
-                } catch (IOException e) {
-                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, e.getMessage());
-                } catch (ApiException e) {
-                    logger.warn("Error while accessing circuit: {}", e.getMessage(), e);
-                } catch (IllegalStateException e) {
-                    logger.trace("Error while accessing circuit: {}", e.getMessage());
-                }
+    // Befehle werden pro Circuit kurz gesammelt, bei gleichem Key gewinnt der letzte. Der erwartete Zustand wird
+    // sofort angezeigt, gesendet wird erst nach COMMAND_DEBOUNCE ms
+    public void updateCircuitState(Circuit circuit, StateUpdate stateUpdate) {
+        if (cube == null) {
+            logger.warn("No Cube connected or selected. Cannot set Circuit State");
+            return;
+        }
+        String circuitId = circuit.getOpenhabId();
+        boolean schedule;
+        synchronized (pendingUpdates) {
+            PendingUpdate pending = pendingUpdates.get(circuitId);
+            schedule = pending == null;
+            if (schedule) {
+                pending = new PendingUpdate(circuit);
+                pendingUpdates.put(circuitId, pending);
+            }
+            pending.update.merge(stateUpdate);
+        }
+        stateUpdate.commands.forEach(command -> {
+            CircuitField field = getCommandField(command.key);
+            if (field != null) {
+                applyOptimistic(circuitId, field, getCommandValue(command.value));
             } else {
-                logger.warn("Command is not supported");
+                logger.warn("Command {} is not supported", command.key);
+            }
+        });
+        if (schedule) {
+            scheduler.schedule(() -> sendCircuitState(circuitId), COMMAND_DEBOUNCE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Sendet die gesammelten Befehle eines Circuits, höchstens ein Request pro Key. Läuft noch eine frühere Sendung
+    // an denselben Circuit, wird erst danach gesendet, damit der Cube die Befehle in ihrer Reihenfolge ausführt
+    private void sendCircuitState(String circuitId) {
+        final Cube cube = this.cube;
+        PendingUpdate pending;
+        CompletableFuture<Void> tail = new CompletableFuture<>();
+        CompletableFuture<Void> previous;
+        synchronized (pendingUpdates) {
+            pending = pendingUpdates.remove(circuitId);
+            if (pending == null || cube == null) {
+                return;
             }
+            previous = sendTails.put(circuitId, tail);
+        }
+        CompletableFuture<Void> start = previous != null ? previous : CompletableFuture.completedFuture(null);
+        // Die Befehle laufen nacheinander, ohne dass ein Thread auf den Cube wartet
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        pending.update.commands.forEach(command -> {
+            CircuitField field = getCommandField(command.key);
+            if (field == null) {
+                return;
+            }
+            CompletableFuture<Void> previousCommand = sent.isEmpty() ? start : sent.get(sent.size() - 1);
+            sent.add(previousCommand.thenCompose(ignored -> field == CircuitField.IRRIGATION
+                    ? cube.setIrrigationAsync(pending.circuit, pending.update)
+                    : cube.setWinterAsync(pending.circuit, pending.update)).handle((ignored, error) -> {
+                        if (error != null) {
+                            onCommandFailed(circuitId, field, unwrap(error));
+                        }
+                        return null;
+                    }));
+        });
+        // Fehler sind oben bereits behandelt, die Kette schließt immer normal ab
+        CompletableFuture<Void> last = sent.isEmpty() ? start : sent.get(sent.size() - 1);
+        last.whenComplete((ignored, error) -> {
+            synchronized (pendingUpdates) {
+                sendTails.remove(circuitId, tail);
+            }
+            tail.complete(null);
+            requestPoll();
+        });
+    }
+
+    private void onCommandFailed(String circuitId, CircuitField field, Throwable e) {
+        if (!polling) {
+            return;
+        }
+        rollBack(circuitId, field);
+        if (e instanceof IrrigationException) {
+            logger.debug("Irrigation of circuit {} can not be turned on, if wintermode is activated", circuitId);
+        } else if (e instanceof ApiException) {
+            logger.warn("Error while accessing circuit: {}", e.getMessage(), e);
+        } else if (e instanceof IllegalStateException) {
+            logger.trace("Error while accessing circuit: {}", e.getMessage());
         } else {
-            logger.warn("No Cube connected or selected. Cannot set Circuit State");
+            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR, e.getMessage());
         }
+    }
+
+    private static @Nullable CircuitField getCommandField(String key) {
+        if (StateUpdate.MODE.equals(key)) {
+            return CircuitField.IRRIGATION;
+        } else if (StateUpdate.WINTER.equals(key)) {
+            return CircuitField.WINTERMODE;
+        }
+        return null;
+    }
 
+    private static boolean getCommandValue(Object value) {
+        return "start".equals(value) || "true".equals(value);
     }
 
     @Override
     public void dispose() {
         logger.debug("Handler disposed");
-        if (pollingJob != null && !pollingJob.isCancelled()) {
-            pollingJob.cancel(true);
-            pollingJob = null;
-        }
+        generation++;
+        stopPolling();
+        // Laufende Requests sofort abbrechen, statt auf ihren Timeout zu warten
         if (cube != null) {
+            cube.close();
             cube = null;
         }
+        saveSnapshot(true);
+        clearCircuitStates();
+        dispatcher.shutdown();
+        synchronized (journalLock) {
+            IrrigationJournal journal = this.journal;
+            if (journal != null) {
+                // Wartet nicht auf den Writer, das übernimmt ein erneutes initialize
+                journal.close();
+                closedJournal = journal;
+                this.journal = null;
+            }
+        }
+        CubeIoExecutor executor = ioExecutor;
+        if (executor != null) {
+            executor.shutdown();
+            ioExecutor = null;
+        }
     }
 
     @Override // Der CubeHandler wird initialisiert
     public void initialize() {
         logger.debug("Initializing MIYOcubeHandler");
         if (getConfig().get(HOST) != null) {
+            dispatcher.start();
             if (cube == null) {
-                cube = new Cube((String) getConfig().get(HOST));
-                cube.setTimeout(5000);
+                cube = new Cube((String) getConfig().get(HOST), metrics);
+                cube.setTimeout(getIntConfig(MIN_REQUEST_TIMEOUT, DEFAULT_MIN_REQUEST_TIMEOUT),
+                        getIntConfig(MAX_REQUEST_TIMEOUT, DEFAULT_MAX_REQUEST_TIMEOUT));
+                cube.setSensorRefreshInterval(TimeUnit.SECONDS
+                        .toMillis(getIntConfig(SENSOR_REFRESH_INTERVAL, DEFAULT_SENSOR_REFRESH_INTERVAL)));
+                cube.setSnapshotMaxAge(
+                        TimeUnit.SECONDS.toMillis(getIntConfig(SNAPSHOT_MAX_AGE, DEFAULT_SNAPSHOT_MAX_AGE)));
+            }
+            if (ioExecutor == null) {
+                CubeIoExecutor executor = new CubeIoExecutor(getThing().getUID().getId(), IO_THREADS, metrics);
+                logger.debug("Using {} I/O threads for MIYOCube", executor.isVirtual() ? "virtual" : "platform");
+                ioExecutor = executor;
+                // Die Antworten des Cubes werden hier statt im gemeinsamen Selector Thread dekodiert
+                cube.setExecutor(executor);
+            }
+            snapshotStore = new CircuitSnapshotStore(Paths.get(ConfigConstants.getUserDataFolder(), BINDING_ID,
+                    getThing().getUID().getId() + ".snapshot"));
+            // Snapshot und Journal lesen Dateien und warten evtl. auf den Writer des alten Journals, das läuft nicht
+            // im Thread des Frameworks. Den Status setzt wie bisher der erste Poll, der erst danach eingeplant wird
+            int generation = ++this.generation;
+            try {
+                CubeIoExecutor executor = ioExecutor;
+                if (executor == null) {
+                    throw new RejectedExecutionException("No I/O executor");
+                }
+                executor.execute(() -> start(generation));
+            } catch (RejectedExecutionException e) {
+                logger.warn("Could not start MIYOCube handler: {}", e.getMessage());
+                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.HANDLER_INITIALIZING_ERROR, e.getMessage());
             }
-            onUpdate();
         } else {
             updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.OFFLINE.CONFIGURATION_ERROR,
                     "@text/offline.conf-error-no-ip-address");
         }
     }
 
+    private void start(int generation) {
+        loadSnapshot(generation);
+        openJournal(generation);
+        if (this.generation == generation) {
+            onUpdate();
+        }
+    }
+
     private synchronized void onUpdate() {
         if (cube != null) {
-            if (pollingJob == null || pollingJob.isCancelled()) {
-                int pollingInterval = DEFAULT_POLLING_INTERVAL;
+            if (!polling) {
+                int interval = DEFAULT_POLLING_INTERVAL;
                 try {
                     Object pollingIntervalConfig = getConfig().get(POLLING_INTERVAL);
                     if (pollingIntervalConfig != null) {
-                        pollingInterval = ((BigDecimal) pollingIntervalConfig).intValue();
+                        interval = ((BigDecimal) pollingIntervalConfig).intValue();
                     } else {
                         logger.info("Polling interval not configured for this MIYOCube. Using default value: {}s",
-                                pollingInterval);
+                                interval);
                     }
                 } catch (NumberFormatException e) {
-                    logger.info("Wrong configuration value for polling interval. Using default value: {}s",
-                            pollingInterval);
+                    logger.info("Wrong configuration value for polling interval. Using default value: {}s", interval);
                 }
-                pollingJob = scheduler.scheduleWithFixedDelay(pollingRunnable, 1, pollingInterval, TimeUnit.SECONDS);
+                pollingInterval = TimeUnit.SECONDS.toMillis(interval);
+                // Schnelles Intervall nie langsamer, langsames nie schneller als das normale
+                fastPollingInterval = Math.min(pollingInterval, TimeUnit.SECONDS
+                        .toMillis(getIntConfig(FAST_POLLING_INTERVAL, DEFAULT_FAST_POLLING_INTERVAL)));
+                slowPollingInterval = Math.max(pollingInterval, TimeUnit.SECONDS
+                        .toMillis(getIntConfig(SLOW_POLLING_INTERVAL, DEFAULT_SLOW_POLLING_INTERVAL)));
+                irrigationWindow = TimeUnit.SECONDS
+                        .toMillis(getIntConfig(IRRIGATION_WINDOW, DEFAULT_IRRIGATION_WINDOW));
+                polling = true;
+                schedulePoll(TimeUnit.SECONDS.toMillis(1));
+            }
+
+        }
+    }
+
+    private synchronized void stopPolling() {
+        polling = false;
+        if (pollingJob != null) {
+            pollingJob.cancel(true);
+            pollingJob = null;
+        }
+        if (timelineJob != null) {
+            timelineJob.cancel(false);
+            timelineJob = null;
+        }
+        timeline.clear();
+        pendingCommands.clear();
+        synchronized (pendingUpdates) {
+            pendingUpdates.clear();
+            sendTails.clear();
+        }
+    }
+
+    // Plant einen Poll kurz nach dem nächsten Start- bzw. Endzeitpunkt eines Circuits ein
+    private synchronized void scheduleTimelineRefresh() {
+        if (!polling) {
+            return;
+        }
+        Long next = timeline.getNext();
+        if (timelineJob != null) {
+            if (next != null && next == timelineJobInstant && !timelineJob.isDone()) {
+                return;
             }
+            timelineJob.cancel(false);
+            timelineJob = null;
+        }
+        if (next != null) {
+            long delay = Math.max(0, next + TIMELINE_GRACE - System.currentTimeMillis());
+            logger.trace("Next irrigation start or end in {} ms", delay);
+            timelineJobInstant = next;
+            timelineJob = scheduler.schedule(this::onTimelineInstant, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onTimelineInstant() {
+        if (timeline.removeUntil(System.currentTimeMillis())) {
+            logger.debug("Irrigation start or end reached, refreshing circuits of MIYOCube");
+            requestPoll();
+        }
+        scheduleTimelineRefresh();
+    }
 
+    // Ersetzt den geplanten Poll durch einen Poll nach delay ms
+    private synchronized void schedulePoll(long delay) {
+        if (!polling) {
+            return;
+        }
+        if (pollingJob != null) {
+            pollingJob.cancel(false);
         }
+        pollingJob = scheduler.schedule(this::poll, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Liest den Stand nach einem Befehl sofort nach, statt auf den nächsten Poll zu warten
+    private void requestPoll() {
+        pollRequested.set(true);
+        schedulePoll(0);
+    }
+
+    private void poll() {
+        if (!pollInFlight.compareAndSet(false, true)) {
+            // Es läuft bereits ein Poll, dieser plant den nächsten selbst ein
+            return;
+        }
+        // Angeforderte Polls laufen beim Cube vor dem regelmäßigen Polling
+        pollPriority = pollRequested.getAndSet(false) ? RequestPriority.REFRESH : RequestPriority.POLL;
+        final Cube cube = this.cube;
+        if (cube != null && cube.getBreakerState() != ConnectionBreaker.State.CLOSED) {
+            // Gilt der Cube als nicht erreichbar, wird statt des ganzen Polls nur eine Probe gesendet
+            dispatchPoll(() -> completeProbe(cube));
+        } else if (cube != null && lastCubeConnectionState) {
+            // Kein Thread wartet auf den Cube, ausgewertet wird im I/O Executor
+            cube.getCircuitsAsync(pollPriority)
+                    .whenComplete((circuits, error) -> dispatchPoll(() -> completePoll(circuits, error)));
+        } else {
+            dispatchPoll(() -> completePoll(null, null));
+        }
+    }
+
+    // Ist der I/O Executor des Cubes voll, fällt dieser Poll aus
+    private void dispatchPoll(Runnable task) {
+        CubeIoExecutor executor = ioExecutor;
+        try {
+            if (executor == null) {
+                throw new RejectedExecutionException("No I/O executor");
+            }
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Skipping poll of MIYOCube, I/O executor is not available: {}", e.getMessage());
+            pollInFlight.set(false);
+            schedulePoll(pollingInterval);
+        }
+    }
+
+    // Ohne Ergebnis läuft der Poll synchron, z.B. um die Verbindung zum Cube wieder aufzubauen. Nur der Vergleich mit
+    // dem letzten Stand läuft unter stateLock, die Requests an den Cube nicht
+    private void completePoll(@Nullable List<Circuit> circuits, @Nullable Throwable error) {
+        try {
+            if (!polling) {
+                return;
+            }
+            if (error != null) {
+                onPollFailure(unwrap(error));
+            } else if (circuits != null) {
+                updateCircuits(circuits);
+            } else {
+                pollingRunnable.run();
+            }
+        } catch (RuntimeException e) {
+            onPollFailure(e);
+        } finally {
+            pollInFlight.set(false);
+        }
+        schedulePoll(pollRequested.get() ? 0 : getNextPollDelay());
+        publishMetrics();
+    }
+
+    // Der Breaker lässt nach Ablauf seiner Wartezeit genau eine Probe durch. Antwortet der Cube, ist er wieder
+    // geschlossen und der nächste Poll baut die Verbindung wie beim Start auf
+    private void completeProbe(Cube cube) {
+        try {
+            if (!polling) {
+                return;
+            }
+            if (cube.probe() == ProbeResult.UNREACHABLE) {
+                if (lastCubeConnectionState || thing.getStatus() == ThingStatus.INITIALIZING) {
+                    lastCubeConnectionState = false;
+                    onConnectionLost();
+                }
+            } else if (cube.getBreakerState() == ConnectionBreaker.State.CLOSED) {
+                logger.debug("MIYOCube {} is reachable again", cube.getIp());
+                lastCubeConnectionState = false;
+                pollRequested.set(true);
+            }
+        } catch (RuntimeException e) {
+            onPollFailure(e);
+        } finally {
+            pollInFlight.set(false);
+        }
+        schedulePoll(pollRequested.get() ? 0 : getNextPollDelay());
+        publishMetrics();
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    // Schnell während einer Bewässerung und kurz vor bzw. nach Start und Ende, langsam wenn nichts ansteht
+    private long getNextPollDelay() {
+        Cube cube = this.cube;
+        if (cube != null && cube.getBreakerState() != ConnectionBreaker.State.CLOSED) {
+            return Math.max(BREAKER_CHECK_INTERVAL, cube.getBreakerRetryDelay());
+        }
+        if (!lastCubeConnectionState || circuitStates.isEmpty()) {
+            return pollingInterval;
+        }
+        if (!pendingCommands.isEmpty()) {
+            return Math.min(fastPollingInterval, CONFIRMATION_POLLING_INTERVAL);
+        }
+        long now = System.currentTimeMillis();
+        boolean idle = true;
+        for (int slot = circuitStates.nextSlot(0); slot >= 0; slot = circuitStates.nextSlot(slot + 1)) {
+            long nextStart = circuitStates.getNextIrrigationStart(slot);
+            if (circuitStates.getIrrigation(slot) || isWithinIrrigationWindow(nextStart, now)
+                    || isWithinIrrigationWindow(circuitStates.getNextIrrigationEnd(slot), now)) {
+                return fastPollingInterval;
+            }
+            if (!circuitStates.getWintermode(slot) && nextStart != CircuitStateStore.NO_TIME
+                    && TimeUnit.SECONDS.toMillis(nextStart) > now) {
+                idle = false;
+            }
+        }
+        return idle ? slowPollingInterval : pollingInterval;
+    }
+
+    // Übernimmt den erwarteten Zustand sofort in den Snapshot, der Cube bestätigt ihn erst mit einem der nächsten Polls
+    private void applyOptimistic(String circuitId, CircuitField field, boolean expected) {
+        synchronized (stateLock) {
+            long now = System.currentTimeMillis();
+            pendingCommands.put(pendingKey(circuitId, field),
+                    new PendingCommand(expected, now, now + CONFIRMATION_TIMEOUT));
+            int slot = circuitStates.getSlot(circuitId);
+            if (slot >= 0 && circuitStates.setDisplayed(slot, field, expected)) {
+                notifyCircuitStatusListeners(circuitStates.getCircuit(slot), EventType.CHANGED, EnumSet.of(field));
+            }
+        }
+    }
+
+    // Vergleicht den gepollten Stand mit offenen Befehlen; bis zur Deadline bleibt der erwartete Wert stehen
+    private Circuit confirmPendingCommands(Circuit circuit, long now) {
+        Circuit result = circuit;
+        for (CircuitField field : CONFIRMABLE_FIELDS) {
+            String key = pendingKey(circuit.getOpenhabId(), field);
+            PendingCommand pending = pendingCommands.get(key);
+            if (pending == null) {
+                continue;
+            }
+            if (getValue(circuit, field) == pending.expected) {
+                pendingCommands.remove(key, pending);
+                metrics.recordConfirmation(now - pending.issuedAt);
+                logger.debug("MIYOCube confirmed {} of circuit {} after {} ms", field, circuit.getOpenhabId(),
+                        now - pending.issuedAt);
+            } else if (now < pending.deadline) {
+                result = withValue(result, field, pending.expected);
+            } else {
+                pendingCommands.remove(key, pending);
+                metrics.recordRollback();
+                logger.warn("MIYOCube did not confirm {} of circuit {}, reverting to the reported state", field,
+                        circuit.getOpenhabId());
+            }
+        }
+        return result;
+    }
+
+    // Der Cube hat den Befehl abgelehnt, statt des erwarteten wird sofort wieder der gemeldete Zustand angezeigt
+    private void rollBack(String circuitId, @Nullable CircuitField field) {
+        synchronized (stateLock) {
+            if (field == null || pendingCommands.remove(pendingKey(circuitId, field)) == null) {
+                return;
+            }
+            metrics.recordRollback();
+            int slot = circuitStates.getSlot(circuitId);
+            if (slot >= 0 && circuitStates.setDisplayed(slot, field, circuitStates.getConfirmed(slot, field))) {
+                notifyCircuitStatusListeners(circuitStates.getCircuit(slot), EventType.CHANGED, EnumSet.of(field));
+            }
+        }
+    }
+
+    // Sendet den Befehl parallel an alle Circuits, die noch nicht im gewünschten Zustand sind. Danach wird das
+    // Ergebnis im Result Channel angezeigt und einmal für alle Circuits nachgelesen
+    private void sendToAllCircuits(CircuitField field, boolean value) {
+        final Cube cube = this.cube;
+        if (cube == null) {
+            logger.warn("No Cube connected or selected. Cannot set Circuit State");
+            return;
+        }
+        List<Circuit> circuits = new ArrayList<>();
+        synchronized (stateLock) {
+            for (int slot = circuitStates.nextSlot(0); slot >= 0; slot = circuitStates.nextSlot(slot + 1)) {
+                if (circuitStates.getDisplayed(slot, field) != value) {
+                    circuits.add(circuitStates.getCircuit(slot));
+                }
+            }
+        }
+        StateUpdate update = field == CircuitField.IRRIGATION ? new StateUpdate().setOn(value)
+                : new StateUpdate().setWinter(value);
+        String action = field == CircuitField.IRRIGATION ? "Irrigation stopped"
+                : "Wintermode turned " + (value ? "on" : "off");
+        // Die Befehle laufen parallel, wie viele gleichzeitig beim Cube ankommen, begrenzt der RequestScheduler des
+        // Cubes. Ausgewertet wird direkt im Thread, der die Antwort erhält; applyOptimistic hält stateLock nur kurz
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (Circuit circuit : circuits) {
+            CompletableFuture<Void> request = field == CircuitField.IRRIGATION
+                    ? cube.setIrrigationAsync(circuit, update)
+                    : cube.setWinterAsync(circuit, update);
+            results.add(request.handle((ignored, error) -> {
+                if (error != null) {
+                    logger.debug("Error while sending command to circuit {}: {}", circuit.getOpenhabId(),
+                            unwrap(error).getMessage());
+                    return false;
+                }
+                applyOptimistic(circuit.getOpenhabId(), field, value);
+                return true;
+            }));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                // Nur ein vom Cube abgelehnter bzw. nicht gesendeter Befehl zählt als Fehler
+                if (!results.get(i).getNow(true)) {
+                    failed.add(circuits.get(i).getName());
+                }
+            }
+            String result = action + " for " + (circuits.size() - failed.size()) + " of " + circuits.size()
+                    + " circuits" + (failed.isEmpty() ? "" : ", failed: " + String.join(", ", failed));
+            logger.debug("{}", result);
+            updateState(CHANNEL_BULK_RESULT, new StringType(result));
+            if (field == CircuitField.IRRIGATION) {
+                updateState(CHANNEL_STOP_ALL_IRRIGATION, OnOffType.OFF);
+            }
+            requestPoll();
+        });
+    }
+
+    private static String pendingKey(String circuitId, CircuitField field) {
+        return circuitId + ":" + field;
+    }
+
+    private static boolean getValue(Circuit circuit, CircuitField field) {
+        return field == CircuitField.IRRIGATION ? circuit.getIrrigation() : circuit.getWintermode();
+    }
+
+    private static Circuit withValue(Circuit circuit, CircuitField field, boolean value) {
+        return field == CircuitField.IRRIGATION ? circuit.withIrrigation(value) : circuit.withWintermode(value);
+    }
+
+    // Die Kennzahlen werden nur selten als Properties der Bridge aktualisiert, ein neuer Zustand des Breakers sofort
+    private void publishMetrics() {
+        long now = System.currentTimeMillis();
+        ConnectionBreaker.State breakerState = metrics.getBreakerState();
+        if (now - lastMetricsPublish >= METRICS_PUBLISH_INTERVAL || breakerState != publishedBreakerState) {
+            lastMetricsPublish = now;
+            publishedBreakerState = breakerState;
+            IrrigationJournal journal = this.journal;
+            if (journal != null) {
+                metrics.recordJournalDropped(journal.getDroppedUpdates());
+            }
+            updateProperties(metrics.toProperties());
+        }
+    }
+
+    public CubeMetrics getMetrics() {
+        return metrics;
+    }
+
+    // time in Epoch-Sekunden
+    private boolean isWithinIrrigationWindow(long time, long now) {
+        return time != CircuitStateStore.NO_TIME
+                && Math.abs(TimeUnit.SECONDS.toMillis(time) - now) <= irrigationWindow;
+    }
+
+    // Verwirft den Stand der Circuits zusammen mit der Timeline, die stopPolling leert. Ein erneutes initialize lädt
+    // ihn aus dem Snapshot, der erste Poll bestätigt ihn und baut die Timeline neu auf
+    private void clearCircuitStates() {
+        synchronized (stateLock) {
+            circuitStates.clear();
+        }
+    }
+
+    // Zeigt nach einem Neustart sofort den letzten bekannten Stand an, bis der erste Poll ihn bestätigt
+    private void loadSnapshot(int generation) {
+        CircuitSnapshotStore store = snapshotStore;
+        if (store == null || !circuitStates.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            List<Circuit> circuits = store.read();
+            synchronized (stateLock) {
+                if (this.generation != generation || !circuitStates.isEmpty()) {
+                    // Inzwischen disposed oder schon vom ersten Poll gefüllt
+                    return;
+                }
+                for (Circuit circuit : circuits) {
+                    circuitStates.update(circuit);
+                    notifyCircuitStatusListeners(circuit, EventType.ADDED, ALL_FIELDS);
+                }
+            }
+            logger.debug("Loaded {} circuits from snapshot in {} ms", circuits.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException e) {
+            logger.debug("Could not load circuit snapshot: {}", e.getMessage());
+        }
+    }
+
+    private void openJournal(int generation) {
+        IrrigationJournal closed = closedJournal;
+        if (closed != null) {
+            try {
+                if (!closed.awaitClosed(JOURNAL_CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logger.debug("Previous irrigation journal writer did not finish in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (journalLock) {
+            if (this.generation != generation || journal != null) {
+                return;
+            }
+            closedJournal = null;
+            try {
+                journal = new IrrigationJournal(Paths.get(ConfigConstants.getUserDataFolder(), BINDING_ID, "journal",
+                        getThing().getUID().getId()));
+            } catch (IOException e) {
+                logger.warn("Could not open irrigation journal: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Das Journal vergleicht mit dem zuletzt geschriebenen Stand und schreibt nur die Wechsel, im eigenen Thread
+    private void recordTransitions(Circuit circuit, long now) {
+        IrrigationJournal journal = this.journal;
+        if (journal != null) {
+            journal.update(circuit, now);
+        }
+    }
+
+    // Bewässerungen pro Tag aus dem Journal, null wenn kein Journal geöffnet ist
+    public @Nullable List<IrrigationJournal.DailyStatistics> getDailyStatistics(String circuitId, long from,
+            long to) {
+        IrrigationJournal journal = this.journal;
+        return journal != null ? journal.getDailyStatistics(circuitId, from, to) : null;
+    }
+
+    // Schreibt den bestätigten Stand, wenn sich seit dem letzten Schreiben etwas geändert hat; höchstens alle
+    // SNAPSHOT_SAVE_INTERVAL ms, mit force sofort
+    private void saveSnapshot(boolean force) {
+        CircuitSnapshotStore store = snapshotStore;
+        if (store == null) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            long now = System.currentTimeMillis();
+            if (!snapshotDirty || !force && now - lastSnapshotSave < SNAPSHOT_SAVE_INTERVAL) {
+                return;
+            }
+            snapshotDirty = false;
+            lastSnapshotSave = now;
+            try {
+                store.write(circuitStates.getConfirmedCircuits());
+            } catch (IOException e) {
+                logger.debug("Could not save circuit snapshot: {}", e.getMessage());
+            }
+        }
+    }
+
+    private int getIntConfig(String name, int defaultValue) {
+        Object value = getConfig().get(name);
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).intValue();
+        } else if (value != null) {
+            try {
+                return Integer.parseInt(value.toString());
+            } catch (NumberFormatException e) {
+                logger.info("Wrong configuration value for {}. Using default value: {}", name, defaultValue);
+            }
+        }
+        return defaultValue;
     }
 
     // This method is called when ever the connection to the Cube is lost
@@ -342,8 +1103,21 @@ public class CubeHandler extends ConfigStatusBridgeHandler {
         boolean result = circuitStatusListeners.add(csl);
         if (result) {
             onUpdate();
-            for (Circuit circuit : lastCircuitStates.values()) {
-                csl.onCircuitAdded(cube, circuit);
+            for (Circuit circuit : circuitStates.getCircuits()) {
+                dispatcher.dispatch(csl, cube, circuit, EventType.ADDED, ALL_FIELDS);
+            }
+        }
+        return result;
+    }
+
+    // Registriert einen Listener, der nur Events des Circuits mit der angegebenen Id bekommt
+    public boolean registerCircuitStatusListener(String circuitId, CircuitStatusListener csl) {
+        boolean result = circuitStatusListeners.add(circuitId, csl);
+        if (result) {
+            onUpdate();
+            Circuit circuit = circuitStates.getCircuit(circuitId);
+            if (circuit != null) {
+                dispatcher.dispatch(csl, cube, circuit, EventType.ADDED, ALL_FIELDS);
             }
         }
         return result;
@@ -352,18 +1126,43 @@ public class CubeHandler extends ConfigStatusBridgeHandler {
     public boolean unregisterCircuitStatusListener(CircuitStatusListener csl) {
         boolean result = circuitStatusListeners.remove(csl);
         if (result) {
+            dispatcher.remove(csl);
+            onUpdate();
+        }
+        return result;
+    }
+
+    public boolean unregisterCircuitStatusListener(String circuitId, CircuitStatusListener csl) {
+        boolean result = circuitStatusListeners.remove(circuitId, csl);
+        if (result) {
+            dispatcher.remove(csl);
             onUpdate();
         }
         return result;
     }
 
     public @Nullable Circuit getCircuitById(String id) {
-        return lastCircuitStates.get(id);
+        return circuitStates.getCircuit(id);
+    }
+
+    public @Nullable SensorHistory getSensorHistory(String circuitId) {
+        return sensorHistories.get(circuitId);
+    }
+
+    private void recordSensorValues(Circuit circuit, long now) {
+        String sensor = circuit.getSensor();
+        if (sensor == null || sensor.equals("0")) {
+            return;
+        }
+        SensorHistory history = sensorHistories.computeIfAbsent(circuit.getOpenhabId(), id -> new SensorHistory());
+        if (now - history.getLastTime() >= SENSOR_SAMPLE_INTERVAL) {
+            history.append(now, circuit.getTemperature(), circuit.getMoisture(), circuit.getBrightness());
+        }
     }
 
     public List<Circuit> getCircuits() {
         List<Circuit> ret = withReAuthentication("Search for new Circuits", () -> {
-            return cube.getCircuits();
+            return cube.getRecentCircuits();
         });
         return ret != null ? ret : Collections.emptyList();
     }
@@ -372,7 +1171,7 @@ public class CubeHandler extends ConfigStatusBridgeHandler {
         if (cube != null) {
             try {
                 try {
-                    runnable.call();
+                    return runnable.call();
                 } catch (UnauthorizedException | IllegalStateException e) {
                     lastCubeConnectionState = false;
                     if (onNotAuthenticated()) {
@@ -386,50 +1185,18 @@ public class CubeHandler extends ConfigStatusBridgeHandler {
         return null;
     }
 
-    private void notifyCircuitStatusListeners(final Circuit circuit, final String type) {
-        if (circuitStatusListeners.isEmpty()) {
+    private void notifyCircuitStatusListeners(final Circuit circuit, final EventType type,
+            final Set<CircuitField> changes) {
+        if (!circuitStatusListeners.hasListeners(circuit.getOpenhabId())) {
             logger.debug("No circuit status Listeners to notify of circuit change for circuit {}",
                     circuit.getOpenhabId());
             return;
         }
 
-        for (CircuitStatusListener csl : circuitStatusListeners) {
-            try {
-                switch (type) {
-                    case CIRCUIT_STATE_ADDED:
-                        csl.onCircuitAdded(cube, circuit);
-                        logger.debug("Sending circuitAdded for circuit: {}", circuit.getOpenhabId());
-                        break;
-                    case CIRCUIT_STATE_CHANGED:
-                        logger.debug("Sending circuitState changed for circuit: {}", circuit.getOpenhabId());
-                        csl.onCircuitStateChanged(cube, circuit);
-                        break;
-                    default:
-                        throw new IllegalArgumentException(
-                                "Could not notify circuitStatusListeners for unknown event type " + type);
-                }
-            } catch (Exception e) {
-                logger.error("An exception occurred while calling the MIYOcubeHeartListener", e);
-            }
-        }
-    }
-
-    private boolean isEqual(Circuit c1, Circuit c2) {
-        boolean irrigation = c1.getIrrigation() == c2.getIrrigation() && c1.getWintermode() == c2.getWintermode()
-                && c1.getNextIrrigationStart().equals(c2.getNextIrrigationStart())
-                && c1.getNextIrrigationEnd().equals(c2.getNextIrrigationEnd())
-                && c1.getExternBlock() == c2.getExternBlock();
-
-        if (!irrigation) {
-            return irrigation;
-        } else {
-            return isEqual(c1.getState(), c2.getState());
-        }
-    }
-
-    private boolean isEqual(State s1, State s2) {
-        return s1.getConsiderMower() == s2.getConsiderMower() && s1.getBorderBottom().equals(s2.getBorderBottom())
-                && s1.getBorderTop().equals(s2.getBorderTop());
+        final Cube cube = this.cube;
+        circuitStatusListeners.forEach(circuit.getOpenhabId(),
+                csl -> dispatcher.dispatch(csl, cube, circuit, type, changes));
+        logger.trace("Pending circuit events: {}", dispatcher.getQueueDepth());
     }
 
     @Override
@@ -445,4 +1212,25 @@ public class CubeHandler extends ConfigStatusBridgeHandler {
         }
         return configStatusMessages;
     }
-}
\ No newline at end of file
+
+    private static class PendingUpdate {
+        private final Circuit circuit;
+        private final StateUpdate update = new StateUpdate();
+
+        private PendingUpdate(Circuit circuit) {
+            this.circuit = circuit;
+        }
+    }
+
+    private static class PendingCommand {
+        private final boolean expected;
+        private final long issuedAt;
+        private final long deadline;
+
+        private PendingCommand(boolean expected, long issuedAt, long deadline) {
+            this.expected = expected;
+            this.issuedAt = issuedAt;
+            this.deadline = deadline;
+        }
+    }
+}
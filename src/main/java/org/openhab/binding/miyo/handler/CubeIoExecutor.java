@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.handler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.openhab.binding.miyo.internal.CubeMetrics;
+
+/**
+ * {@link CubeIoExecutor} führt die blockierende Arbeit eines Cubes aus, statt sie auf dem Scheduler des Frameworks
+ * laufen zu lassen, den alle Bindings teilen
+ *
+ * Jeder Cube hat einen eigenen Executor mit fester Anzahl Threads und begrenzter Queue. Ein Cube, der nicht mehr
+ * antwortet, belegt also höchstens diese Threads; weitere Aufgaben werden abgelehnt. Wo die JVM virtuelle Threads
+ * anbietet, werden diese verwendet.
+ *
+ */
+@NonNullByDefault
+class CubeIoExecutor implements Executor {
+
+    private static final int QUEUE_CAPACITY = 32;
+
+    private final ThreadPoolExecutor executor;
+
+    private final CubeMetrics metrics;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final boolean virtual;
+
+    CubeIoExecutor(String name, int threads, CubeMetrics metrics) {
+        this.metrics = metrics;
+        String prefix = "MIYO-io-" + name + "-";
+        ThreadFactory factory = createVirtualThreadFactory(prefix);
+        this.virtual = factory != null;
+        if (factory == null) {
+            AtomicInteger count = new AtomicInteger();
+            factory = runnable -> {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), factory);
+        this.executor.allowCoreThreadTimeOut(true);
+        metrics.setIoCapacity(threads);
+    }
+
+    // Wirft eine RejectedExecutionException, wenn alle Threads belegt sind und die Queue voll ist. Die Belegung wird
+    // beim Einreihen, Start und Ende jeder Aufgabe in die CubeMetrics übernommen
+    @Override
+    public void execute(Runnable task) {
+        try {
+            executor.execute(() -> {
+                metrics.recordIoOccupancy(active.incrementAndGet(), executor.getQueue().size());
+                try {
+                    task.run();
+                } finally {
+                    metrics.recordIoOccupancy(active.decrementAndGet(), executor.getQueue().size());
+                }
+            });
+            metrics.recordIoOccupancy(active.get(), executor.getQueue().size());
+        } catch (RejectedExecutionException e) {
+            metrics.recordIoRejected();
+            throw e;
+        }
+    }
+
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    // Unterbricht laufende Aufgaben, wartende werden verworfen
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // Thread.ofVirtual().name(prefix, 0).factory() ab Java 21, per Reflection da das Bundle für Java 8 gebaut wird
+    private static @Nullable ThreadFactory createVirtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.handler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.eclipse.jdt.annotation.NonNullByDefault;
+import org.eclipse.jdt.annotation.Nullable;
+import org.joda.time.DateTime;
+
+/**
+ * {@link IrrigationTimeline} hält die anstehenden Start- und Endzeiten aller Circuits zeitlich sortiert, damit der
+ * {@link CubeHandler} genau zu diesen Zeitpunkten den Stand nachlesen kann
+ *
+ * Die Zeiten werden pro Circuit aktualisiert, ohne den ganzen Plan neu aufzubauen.
+ *
+ */
+@NonNullByDefault
+class IrrigationTimeline {
+
+    // Zeitpunkt in ms -> openhabIds der Circuits
+    private final TreeMap<Long, Set<String>> instants = new TreeMap<>();
+
+    // openhabId -> eingetragene Start- und Endzeit
+    private final Map<String, long[]> circuitInstants = new HashMap<>();
+
+    // Übernimmt die neuen Zeiten eines Circuits; vergangene Zeiten werden nicht eingetragen
+    synchronized void update(String circuitId, @Nullable DateTime start, @Nullable DateTime end, long now) {
+        remove(circuitId);
+        long[] times = new long[] { toMillis(start, now), toMillis(end, now) };
+        for (long time : times) {
+            if (time > 0) {
+                instants.computeIfAbsent(time, t -> new HashSet<>()).add(circuitId);
+            }
+        }
+        circuitInstants.put(circuitId, times);
+    }
+
+    synchronized void remove(String circuitId) {
+        long[] times = circuitInstants.remove(circuitId);
+        if (times == null) {
+            return;
+        }
+        for (long time : times) {
+            Set<String> circuitIds = instants.get(time);
+            if (circuitIds != null && circuitIds.remove(circuitId) && circuitIds.isEmpty()) {
+                instants.remove(time);
+            }
+        }
+    }
+
+    // Entfernt alle Zeitpunkte bis einschließlich until, auch aus den Zeiten der Circuits; liefert true, wenn einer
+    // fällig war
+    synchronized boolean removeUntil(long until) {
+        boolean due = false;
+        Iterator<Map.Entry<Long, Set<String>>> it = instants.headMap(until, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Set<String>> instant = it.next();
+            for (String circuitId : instant.getValue()) {
+                long[] times = circuitInstants.get(circuitId);
+                if (times == null) {
+                    continue;
+                }
+                for (int i = 0; i < times.length; i++) {
+                    if (times[i] == instant.getKey()) {
+                        times[i] = 0;
+                    }
+                }
+                if (times[0] == 0 && times[1] == 0) {
+                    circuitInstants.remove(circuitId);
+                }
+            }
+            it.remove();
+            due = true;
+        }
+        return due;
+    }
+
+    synchronized @Nullable Long getNext() {
+        return instants.isEmpty() ? null : instants.firstKey();
+    }
+
+    synchronized void clear() {
+        instants.clear();
+        circuitInstants.clear();
+    }
+
+    private static long toMillis(@Nullable DateTime time, long now) {
+        return time != null && time.getMillis() > now ? time.getMillis() : 0;
+    }
+}
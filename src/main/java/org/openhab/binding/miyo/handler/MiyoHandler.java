@@ -10,8 +10,14 @@ package org.openhab.binding.miyo.handler;
 
 import static org.openhab.binding.miyo.MiyoBindingConstants.*;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -32,11 +38,14 @@ import org.eclipse.smarthome.core.thing.binding.BaseThingHandler;
 import org.eclipse.smarthome.core.thing.binding.ThingHandler;
 import org.eclipse.smarthome.core.types.Command;
 import org.eclipse.smarthome.core.types.State;
+import org.joda.time.LocalDate;
 import org.joda.time.format.DateTimeFormat;
 import org.openhab.binding.miyo.internal.Circuit;
+import org.openhab.binding.miyo.internal.CircuitField;
+import org.openhab.binding.miyo.internal.IrrigationJournal;
+import org.openhab.binding.miyo.internal.SensorHistory;
 import org.openhab.binding.miyo.internal.StateUpdate;
 import org.openhab.binding.miyo.internal.Cube;
-import org.openhab.binding.miyo.internal.exceptions.IrrigationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,16 +64,70 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
     public final static Set<ThingTypeUID> SUPPORTED_THING_TYPES = Stream.of(THING_TYPE_CIRCUIT)
             .collect(Collectors.toSet());
 
+    private static final Set<CircuitField> ALL_FIELDS = Collections.unmodifiableSet(EnumSet.allOf(CircuitField.class));
+
+    private static final Set<CircuitField> SENSOR_FIELDS = Collections
+            .unmodifiableSet(EnumSet.of(CircuitField.TEMPERATURE, CircuitField.MOISTURE, CircuitField.BRIGHTNESS));
+
+    private static final int DEFAULT_HISTORY_WINDOW = 60;
+
+    private static final Map<CircuitField, String> FIELD_CHANNELS = new EnumMap<>(CircuitField.class);
+
+    static {
+        FIELD_CHANNELS.put(CircuitField.IRRIGATION, CHANNEL_IRRIGATION);
+        FIELD_CHANNELS.put(CircuitField.WINTERMODE, CHANNEL_WINTERMODE);
+        FIELD_CHANNELS.put(CircuitField.NEXT_IRRIGATION_START, CHANNEL_IRRIGATIONSTART);
+        FIELD_CHANNELS.put(CircuitField.NEXT_IRRIGATION_END, CHANNEL_IRRIGATIONEND);
+        FIELD_CHANNELS.put(CircuitField.BORDER_BOTTOM, CHANNEL_BORDERBOTTOM);
+        FIELD_CHANNELS.put(CircuitField.BORDER_TOP, CHANNEL_BORDERTOP);
+        FIELD_CHANNELS.put(CircuitField.CONSIDER_MOWER, CHANNEL_CONSIDERMOWER);
+        FIELD_CHANNELS.put(CircuitField.EXTERN_BLOCK, CHANNEL_EXTERNBLOCK);
+        FIELD_CHANNELS.put(CircuitField.TEMPERATURE, CHANNEL_TEMPERATURE);
+        FIELD_CHANNELS.put(CircuitField.MOISTURE, CHANNEL_HUMIDITY);
+        FIELD_CHANNELS.put(CircuitField.BRIGHTNESS, CHANNEL_BRIGHTNESS);
+    }
+
+    // Aus der Sensor-Historie bzw. dem Journal berechnete Channels
+    private enum AggregateChannel {
+        HUMIDITY_AVERAGE(CHANNEL_HUMIDITY_AVERAGE),
+        HUMIDITY_TREND(CHANNEL_HUMIDITY_TREND),
+        TEMPERATURE_AVERAGE(CHANNEL_TEMPERATURE_AVERAGE),
+        IRRIGATIONS_TODAY(CHANNEL_IRRIGATIONS_TODAY),
+        IRRIGATION_DURATION_TODAY(CHANNEL_IRRIGATION_DURATION_TODAY);
+
+        private final String channelId;
+
+        private AggregateChannel(String channelId) {
+            this.channelId = channelId;
+        }
+    }
+
     @NonNullByDefault({})
     private String circuitID;
     private @Nullable CubeHandler cubeHandler;
-    @Nullable
-    ScheduledFuture<?> refreshJob;
+
+    // Die ChannelUIDs werden einmal pro Handler erzeugt, die zuletzt gesendeten Werte verhindern doppelte Events
+    private final Map<CircuitField, ChannelUID> channelUIDs = new EnumMap<>(CircuitField.class);
+    private final Map<CircuitField, State> publishedStates = new EnumMap<>(CircuitField.class);
+
+    // Ebenso für die Mittelwerte und Trends
+    private final Map<AggregateChannel, ChannelUID> aggregateUIDs = new EnumMap<>(AggregateChannel.class);
+    private final Map<AggregateChannel, State> publishedAggregates = new EnumMap<>(AggregateChannel.class);
+    private final SensorHistory.Aggregate aggregate = new SensorHistory.Aggregate();
+
+    // Zeitfenster für Mittelwert und Trend in ms
+    private long historyWindow = TimeUnit.MINUTES.toMillis(DEFAULT_HISTORY_WINDOW);
 
     private org.joda.time.format.DateTimeFormatter formatter = DateTimeFormat.forPattern("dd.MM.yyyy HH:mm");
 
     public MiyoHandler(Thing thing) {
         super(thing);
+        for (Map.Entry<CircuitField, String> entry : FIELD_CHANNELS.entrySet()) {
+            channelUIDs.put(entry.getKey(), new ChannelUID(thing.getUID(), entry.getValue()));
+        }
+        for (AggregateChannel channel : AggregateChannel.values()) {
+            aggregateUIDs.put(channel, new ChannelUID(thing.getUID(), channel.channelId));
+        }
     }
 
     @Override
@@ -76,6 +139,13 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
 
     private void initializeThing(@Nullable ThingStatus bridgestatus) {
         logger.debug("Initialize Thing {} bridgestatus {}", getThing().getUID(), bridgestatus);
+        synchronized (this) {
+            publishedStates.clear();
+            publishedAggregates.clear();
+        }
+        Object window = getConfig().get(HISTORY_WINDOW);
+        historyWindow = TimeUnit.MINUTES
+                .toMillis(window instanceof BigDecimal ? ((BigDecimal) window).longValue() : DEFAULT_HISTORY_WINDOW);
 
         getConfig().put(CIRCUIT_ID, getThing().getProperties().get(CIRCUIT_ID));
         final String configCircuitId = (String) getConfig().get(CIRCUIT_ID);
@@ -85,7 +155,6 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
                 if (bridgestatus == ThingStatus.ONLINE) {
                     // initializeProperties();
                     updateStatus(ThingStatus.ONLINE);
-                    startAutomaticRefresh();
                 } else {
                     updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.BRIDGE_OFFLINE);
                 }
@@ -97,25 +166,6 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
         }
     }
 
-    private void startAutomaticRefresh() {
-        refreshJob = scheduler.scheduleWithFixedDelay(() -> {
-            try {
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_BORDERBOTTOM), getBorderbottom(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_BORDERTOP), getBordertop(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_IRRIGATIONSTART),
-                        getIrrigationStart(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_IRRIGATIONEND), getIrrigationEnd(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_TEMPERATURE), getTemperature(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_HUMIDITY), getHumidity(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_BRIGHTNESS), getBrightness(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_CONSIDERMOWER), getConsiderMower(getCircuit()));
-                updateState(new ChannelUID(getThing().getUID(), CHANNEL_EXTERNBLOCK), getExternBlock(getCircuit()));
-            } catch (Exception e) {
-                updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.OFFLINE.COMMUNICATION_ERROR, e.getMessage());
-            }
-        }, 0, 15, TimeUnit.SECONDS);
-    }
-
     private synchronized @Nullable CubeHandler getCubeHandler() {
         if (this.cubeHandler == null) {
             Bridge bridge = getBridge();
@@ -123,9 +173,9 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
                 return null;
             }
             ThingHandler handler = bridge.getHandler();
-            if (handler instanceof CubeHandler) {
+            if (handler instanceof CubeHandler && circuitID != null) {
                 this.cubeHandler = (CubeHandler) handler;
-                this.cubeHandler.registerCircuitStatusListener(this);
+                this.cubeHandler.registerCircuitStatusListener(circuitID, this);
             } else {
                 return null;
             }
@@ -139,15 +189,11 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
         if (circuitID != null) {
             CubeHandler cubeHandler = getCubeHandler();
             if (cubeHandler != null) {
-                cubeHandler.unregisterCircuitStatusListener(this);
+                cubeHandler.unregisterCircuitStatusListener(circuitID, this);
                 this.cubeHandler = null;
             }
             circuitID = null;
         }
-        if (refreshJob != null && !refreshJob.isCancelled()) {
-            refreshJob.cancel(true);
-            refreshJob = null;
-        }
     }
 
     private @Nullable Circuit getCircuit() {
@@ -171,58 +217,33 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
             logger.warn("Circuit not known to the bridge. Cannot handle Command");
             return;
         }
+        CircuitField field = getField(channelUID.getId());
         StateUpdate circuitState = null;
         switch (channelUID.getId()) {
             case CHANNEL_IRRIGATION:
                 logger.trace("CHANNEL Irrigation handling command {}", command);
                 if (circuit.getWintermode()) {
-                    updateState(CHANNEL_IRRIGATION, OnOffType.OFF);
+                    publish(CircuitField.IRRIGATION, OnOffType.OFF, true);
                     return;
                 }
                 if (command instanceof OnOffType) {
                     circuitState = new StateUpdate().setOn(OnOffType.ON.equals(command));
                 }
                 break;
-            case CHANNEL_BORDERBOTTOM:
-                updateState(channelUID, getBorderbottom(circuit));
-                break;
-            case CHANNEL_BORDERTOP:
-                updateState(channelUID, getBordertop(circuit));
-                break;
-            case CHANNEL_IRRIGATIONSTART:
-                updateState(channelUID, getIrrigationStart(circuit));
-                break;
-            case CHANNEL_IRRIGATIONEND:
-                updateState(channelUID, getIrrigationEnd(circuit));
-                break;
-            case CHANNEL_TEMPERATURE:
-                updateState(channelUID, getTemperature(circuit));
-                break;
-            case CHANNEL_HUMIDITY:
-                updateState(channelUID, getHumidity(circuit));
-                break;
-            case CHANNEL_BRIGHTNESS:
-                updateState(channelUID, getBrightness(circuit));
-                break;
             case CHANNEL_WINTERMODE:
                 logger.trace("CHANNEL Wintermode handling command {}", command);
                 if (command instanceof OnOffType) {
                     circuitState = new StateUpdate().setWinter(OnOffType.ON.equals(command));
                 }
                 break;
-            case CHANNEL_CONSIDERMOWER:
-                updateState(channelUID, getConsiderMower(circuit));
-                break;
-            case CHANNEL_EXTERNBLOCK:
-                updateState(channelUID, getExternBlock(circuit));
-                break;
         }
         if (circuitState != null) {
-            try {
-                cubeHandler.updateCircuitState(circuit, circuitState);
-            } catch (IrrigationException e) {
-                updateState(CHANNEL_IRRIGATION, OnOffType.OFF);
-            }
+            cubeHandler.updateCircuitState(circuit, circuitState);
+        } else if (field != null) {
+            // REFRESH bzw. Befehle an die read-only Channels liefern den letzten bekannten Wert
+            publish(field, getState(circuit, field), true);
+        } else if (isAggregateChannel(channelUID.getId())) {
+            updateAggregates(true);
         } else {
             logger.warn("Command sent to an unknown Channel ID: {}", channelUID);
         }
@@ -275,7 +296,11 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
     @Override
     public void onCircuitAdded(@Nullable Cube cube, Circuit circuit) {
         if (circuit.getOpenhabId().equals(circuitID)) {
-            updateStatus(ThingStatus.ONLINE);
+            // Werte aus dem Snapshot werden angezeigt, ONLINE erst nach dem ersten Poll
+            if (!circuit.isStale()) {
+                updateStatus(ThingStatus.ONLINE);
+            }
+            updateChannels(circuit, ALL_FIELDS, false);
         }
     }
 
@@ -291,8 +316,11 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
         CubeHandler handler = getCubeHandler();
         if (handler != null) {
             Circuit circuit = handler.getCircuitById(circuitID);
-            if (circuit != null) {
-                onCircuitStateChanged(null, circuit);
+            CircuitField field = getField(channelUID.getId());
+            if (circuit != null && field != null) {
+                publish(field, getState(circuit, field), true);
+            } else if (isAggregateChannel(channelUID.getId())) {
+                updateAggregates(true);
             }
         }
 
@@ -300,6 +328,11 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
 
     @Override
     public void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit) {
+        onCircuitStateChanged(cube, circuit, ALL_FIELDS);
+    }
+
+    @Override
+    public void onCircuitStateChanged(@Nullable Cube cube, Circuit circuit, Set<CircuitField> changes) {
         logger.trace("OnCircuitStateChanged() was called");
         if (!circuit.getOpenhabId().equals(circuitID)) {
             logger.trace("Received state changed for another handler's circuit({}). Will be ignored", circuit.getId());
@@ -312,17 +345,116 @@ public class MiyoHandler extends BaseThingHandler implements CircuitStatusListen
             updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.NONE, "circuit not reachable");
         }
 
-        if (circuit.getWintermode()) {
-            updateState(CHANNEL_WINTERMODE, OnOffType.ON);
-        } else {
-            updateState(CHANNEL_WINTERMODE, OnOffType.OFF);
+        updateChannels(circuit, changes, false);
+    }
+
+    // Aktualisiert nur die Channels der geänderten Werte
+    private void updateChannels(Circuit circuit, Set<CircuitField> changes, boolean force) {
+        for (CircuitField field : changes) {
+            publish(field, getState(circuit, field), force);
+        }
+        // Die Statistik von heute wächst während einer Bewässerung mit jedem Sensor-Update
+        if (!Collections.disjoint(changes, SENSOR_FIELDS) || changes.contains(CircuitField.IRRIGATION)) {
+            updateAggregates(force);
         }
+    }
 
-        if (circuit.getIrrigation()) {
-            updateState(CHANNEL_IRRIGATION, OnOffType.ON);
-        } else {
-            updateState(CHANNEL_IRRIGATION, OnOffType.OFF);
+    // Mittelwert und Trend aus der Sensor-Historie, Bewässerungen von heute aus dem Journal des CubeHandlers
+    private synchronized void updateAggregates(boolean force) {
+        CubeHandler handler = this.cubeHandler;
+        if (handler == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        SensorHistory history = handler.getSensorHistory(circuitID);
+        if (history != null && history.aggregate(CircuitField.MOISTURE, now, historyWindow, aggregate)) {
+            publish(aggregateUIDs, publishedAggregates, AggregateChannel.HUMIDITY_AVERAGE,
+                    round(aggregate.getAverage(), 1), force);
+            publish(aggregateUIDs, publishedAggregates, AggregateChannel.HUMIDITY_TREND,
+                    round(aggregate.getSlope(), 2), force);
+        }
+        if (history != null && history.aggregate(CircuitField.TEMPERATURE, now, historyWindow, aggregate)) {
+            publish(aggregateUIDs, publishedAggregates, AggregateChannel.TEMPERATURE_AVERAGE,
+                    round(aggregate.getAverage(), 1), force);
+        }
+        List<IrrigationJournal.DailyStatistics> days = handler.getDailyStatistics(circuitID,
+                LocalDate.now().toDateTimeAtStartOfDay().getMillis(), now);
+        if (days != null) {
+            int count = 0;
+            long duration = 0;
+            for (IrrigationJournal.DailyStatistics day : days) {
+                count += day.getCount();
+                duration += day.getDuration();
+            }
+            publish(aggregateUIDs, publishedAggregates, AggregateChannel.IRRIGATIONS_TODAY, new DecimalType(count),
+                    force);
+            publish(aggregateUIDs, publishedAggregates, AggregateChannel.IRRIGATION_DURATION_TODAY,
+                    round(duration / (double) TimeUnit.MINUTES.toMillis(1), 1), force);
         }
     }
 
+    private static State round(double value, int scale) {
+        return new DecimalType(BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_UP));
+    }
+
+    private static boolean isAggregateChannel(String channelId) {
+        for (AggregateChannel channel : AggregateChannel.values()) {
+            if (channel.channelId.equals(channelId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void publish(CircuitField field, State state, boolean force) {
+        publish(channelUIDs, publishedStates, field, state, force);
+    }
+
+    // Sendet den Wert nur an das Framework, wenn er sich vom zuletzt gesendeten unterscheidet
+    private <K extends Enum<K>> void publish(Map<K, ChannelUID> uids, Map<K, State> published, K key, State state,
+            boolean force) {
+        if (force || !state.equals(published.get(key))) {
+            published.put(key, state);
+            updateState(uids.get(key), state);
+        }
+    }
+
+    private State getState(Circuit circuit, CircuitField field) {
+        switch (field) {
+            case IRRIGATION:
+                return circuit.getIrrigation() ? OnOffType.ON : OnOffType.OFF;
+            case WINTERMODE:
+                return circuit.getWintermode() ? OnOffType.ON : OnOffType.OFF;
+            case NEXT_IRRIGATION_START:
+                return getIrrigationStart(circuit);
+            case NEXT_IRRIGATION_END:
+                return getIrrigationEnd(circuit);
+            case BORDER_BOTTOM:
+                return getBorderbottom(circuit);
+            case BORDER_TOP:
+                return getBordertop(circuit);
+            case CONSIDER_MOWER:
+                return getConsiderMower(circuit);
+            case EXTERN_BLOCK:
+                return getExternBlock(circuit);
+            case TEMPERATURE:
+                return getTemperature(circuit);
+            case MOISTURE:
+                return getHumidity(circuit);
+            case BRIGHTNESS:
+                return getBrightness(circuit);
+            default:
+                throw new IllegalArgumentException("Unknown circuit field " + field);
+        }
+    }
+
+    private static @Nullable CircuitField getField(String channelId) {
+        for (Map.Entry<CircuitField, String> entry : FIELD_CHANNELS.entrySet()) {
+            if (entry.getValue().equals(channelId)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
 }
@@ -0,0 +1,570 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.openhab.binding.miyo.internal.HttpClient.BodyReader;
+import org.openhab.binding.miyo.internal.HttpClient.Result;
+import org.openhab.binding.miyo.internal.exceptions.HttpStatusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * {@link AsyncHttpClient} für Http Requests an den Cube, ohne dass ein Thread auf das Netzwerk wartet
+ *
+ * Alle Clients teilen sich einen {@link SelectorLoop}, in dem nur gelesen und geschrieben wird. Die Adresse wird
+ * vorher im aufrufenden Thread aufgelöst, der Body danach im Executor des Clients dekodiert, der dort auch die Futures
+ * abschließt. So hält weder ein langsamer DNS-Server noch ein großer Body die Verbindungen der anderen Cubes auf.
+ * Keep-Alive Verbindungen werden wie beim {@link HttpClient} wiederverwendet und die Timeouts wie dort vom
+ * {@link LatencyEstimator} abgeleitet. Wird ein Future abgebrochen, schließt der Client die Verbindung des Requests
+ * sofort.
+ *
+ */
+public class AsyncHttpClient {
+    private static final long DEFAULT_KEEP_ALIVE = 30000;
+    // So lange wird eine aufgelöste Adresse wiederverwendet
+    private static final long ADDRESS_TTL = 60000;
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private final Logger logger = LoggerFactory.getLogger(AsyncHttpClient.class);
+    private final SelectorLoop loop;
+    private final int maxIdleConnections;
+    private final long keepAliveMillis;
+    private volatile LatencyEstimator latency = new LatencyEstimator(1000, 1000);
+    private volatile boolean closed;
+    private volatile Executor executor = ForkJoinPool.commonPool();
+    // Aufgelöste Adressen nach host:port
+    private final Map<String, ResolvedAddress> addresses = new ConcurrentHashMap<>();
+    // Nur im Thread der Loop verwendet
+    private final ArrayDeque<IdleConnection> idle = new ArrayDeque<>();
+    private final List<Exchange<?>> active = new ArrayList<>();
+
+    public AsyncHttpClient() throws IOException {
+        this(HttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE);
+    }
+
+    public AsyncHttpClient(int maxIdleConnections, long keepAliveMillis) throws IOException {
+        this.maxIdleConnections = maxIdleConnections;
+        this.keepAliveMillis = keepAliveMillis;
+        this.loop = SelectorLoop.acquire();
+    }
+
+    // Fester Timeout für den ganzen Request, vom Verbindungsaufbau bis zum Ende der Antwort
+    public void setTimeout(int timeout) {
+        latency.setBounds(timeout, timeout);
+    }
+
+    // Der Timeout folgt den gemessenen Antwortzeiten, bleibt aber zwischen minTimeout und maxTimeout
+    public void setTimeout(int minTimeout, int maxTimeout) {
+        latency.setBounds(minTimeout, maxTimeout);
+    }
+
+    // Erlaubt es, die Schätzungen mit einem HttpClient zum selben Cube zu teilen
+    void setLatencyEstimator(LatencyEstimator latency) {
+        this.latency = latency;
+    }
+
+    // Hier werden die Bodies dekodiert und die Futures abgeschlossen. Lehnt der Executor ab, übernimmt der
+    // ForkJoinPool.commonPool(), nie der Thread der Loop
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public CompletableFuture<Result> get(String address) {
+        return doNetwork(address, "GET", "", null);
+    }
+
+    public CompletableFuture<Result> put(String address, String body) {
+        return doNetwork(address, "PUT", body, null);
+    }
+
+    public CompletableFuture<Result> post(String address, String body) {
+        return doNetwork(address, "POST", body, null);
+    }
+
+    public CompletableFuture<Result> delete(String address) {
+        return doNetwork(address, "DELETE", "", null);
+    }
+
+    // Der Body wird nach dem vollständigen Empfang im Executor des Clients an den BodyReader übergeben
+    public <T> CompletableFuture<T> get(String address, BodyReader<T> reader) {
+        return doNetwork(address, "GET", "", reader);
+    }
+
+    public <T> CompletableFuture<T> post(String address, String body, BodyReader<T> reader) {
+        return doNetwork(address, "POST", body, reader);
+    }
+
+    // Bricht laufende Requests ab und schließt alle Verbindungen
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.execute(() -> {
+            for (Exchange<?> exchange : new ArrayList<>(active)) {
+                exchange.fail(new IOException("Client closed"), false);
+            }
+            for (IdleConnection connection : idle) {
+                closeQuietly(connection.channel);
+            }
+            idle.clear();
+        });
+        SelectorLoop.release(loop);
+    }
+
+    private <T> CompletableFuture<T> doNetwork(String address, String requestMethod, String body,
+            BodyReader<T> reader) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Client closed"));
+            return future;
+        }
+        try {
+            URL url = new URL(address);
+            if (!"http".equals(url.getProtocol())) {
+                throw new IOException("Unsupported protocol: " + url.getProtocol());
+            }
+            byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+            Exchange<T> exchange = new Exchange<>(url, resolve(url), requestMethod,
+                    encodeRequest(url, requestMethod, content), reader, future);
+            future.whenComplete((value, error) -> {
+                if (future.isCancelled()) {
+                    loop.execute(exchange::cancel);
+                }
+            });
+            loop.execute(exchange::start);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // Die Auflösung kann blockieren und läuft daher im aufrufenden Thread, nicht in der Loop
+    private InetSocketAddress resolve(URL url) throws UnknownHostException {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getHost() + ":" + port;
+        long now = System.currentTimeMillis();
+        ResolvedAddress resolved = addresses.get(key);
+        if (resolved == null || now >= resolved.expiresAt) {
+            InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+            if (address.isUnresolved()) {
+                addresses.remove(key);
+                throw new UnknownHostException("Unknown host " + url.getHost());
+            }
+            resolved = new ResolvedAddress(address, now + ADDRESS_TTL);
+            addresses.put(key, resolved);
+        }
+        return resolved.address;
+    }
+
+    // Schließt das Future außerhalb der Loop ab, damit weder der BodyReader noch die daran hängenden Callbacks sie
+    // aufhalten
+    private void dispatch(Runnable completion) {
+        try {
+            executor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            ForkJoinPool.commonPool().execute(completion);
+        }
+    }
+
+    private static ByteBuffer encodeRequest(URL url, String requestMethod, byte[] content) {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder request = new StringBuilder(128 + path.length());
+        request.append(requestMethod).append(' ').append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            request.append(':').append(url.getPort());
+        }
+        request.append("\r\n");
+        request.append("Content-Type: application/json\r\n");
+        request.append("Accept: */*\r\n");
+        request.append("Connection: keep-alive\r\n");
+        if (content.length > 0 || !"GET".equals(requestMethod) && !"DELETE".equals(requestMethod)) {
+            request.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        request.append("\r\n");
+        byte[] head = request.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(head.length + content.length);
+        buffer.put(head).put(content);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Liefert eine noch gültige Keep-Alive Verbindung zu host:port oder null
+    private IdleConnection pollIdle(InetSocketAddress address, long now) {
+        Iterator<IdleConnection> it = idle.iterator();
+        while (it.hasNext()) {
+            IdleConnection connection = it.next();
+            if (now >= connection.expiresAt || !connection.channel.isOpen()) {
+                it.remove();
+                closeQuietly(connection.channel);
+            } else if (connection.address.equals(address)) {
+                it.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    private void offerIdle(SocketChannel channel, SelectionKey key, InetSocketAddress address, long keepAliveHint) {
+        if (closed || idle.size() >= maxIdleConnections) {
+            closeQuietly(channel);
+            return;
+        }
+        key.interestOps(0);
+        key.attach(null);
+        long keepAlive = keepAliveHint > 0 ? Math.min(keepAliveHint, keepAliveMillis) : keepAliveMillis;
+        idle.addLast(new IdleConnection(channel, key, address, System.currentTimeMillis() + keepAlive));
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.trace("Could not close connection: {}", e.getMessage());
+        }
+    }
+
+    // Sucht die Leerzeile am Ende der Header, -1 wenn sie noch nicht empfangen wurde
+    private static int indexOf(byte[] buffer, int from, int to, byte[] pattern) {
+        outer: for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // Dekodiert einen Body mit Transfer-Encoding: chunked, null wenn er noch nicht vollständig empfangen wurde
+    private static byte[] decodeChunked(byte[] buffer, int from, int to) throws IOException {
+        byte[] body = new byte[to - from];
+        int length = 0;
+        int pos = from;
+        while (true) {
+            int lineEnd = indexOf(buffer, pos, to, CRLF);
+            if (lineEnd < 0) {
+                return null;
+            }
+            String line = new String(buffer, pos, lineEnd - pos, StandardCharsets.ISO_8859_1);
+            int extension = line.indexOf(';');
+            int size = Integer.parseInt((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+            pos = lineEnd + 2;
+            if (size == 0) {
+                // Trailer bis zur Leerzeile überspringen
+                while (true) {
+                    int trailerEnd = indexOf(buffer, pos, to, CRLF);
+                    if (trailerEnd < 0) {
+                        return null;
+                    }
+                    if (trailerEnd == pos) {
+                        return Arrays.copyOf(body, length);
+                    }
+                    pos = trailerEnd + 2;
+                }
+            }
+            if (to - pos < size + 2) {
+                return null;
+            }
+            System.arraycopy(buffer, pos, body, length, size);
+            length += size;
+            pos += size + 2;
+        }
+    }
+
+    private static class ResolvedAddress {
+        private final InetSocketAddress address;
+        private final long expiresAt;
+
+        private ResolvedAddress(InetSocketAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class IdleConnection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final InetSocketAddress address;
+        private final long expiresAt;
+
+        private IdleConnection(SocketChannel channel, SelectionKey key, InetSocketAddress address, long expiresAt) {
+            this.channel = channel;
+            this.key = key;
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // Ein Request mit Antwort, läuft bis zum Empfang der Antwort im Thread der Loop
+    private class Exchange<T> implements SelectorLoop.Handler {
+        private final URL url;
+        private final InetSocketAddress address;
+        private final String requestMethod;
+        private final ByteBuffer request;
+        private final BodyReader<T> reader;
+        private final CompletableFuture<T> future;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean reused;
+        private long started;
+        private long deadline;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private byte[] response = new byte[READ_BUFFER_SIZE];
+        private int length;
+        // Ab hier beginnt der Body, -1 solange die Header noch nicht vollständig sind
+        private int bodyStart = -1;
+        private int responseCode;
+        private Map<String, String> headers;
+
+        private Exchange(URL url, InetSocketAddress address, String requestMethod, ByteBuffer request,
+                BodyReader<T> reader, CompletableFuture<T> future) {
+            this.url = url;
+            this.address = address;
+            this.requestMethod = requestMethod;
+            this.request = request;
+            this.reader = reader;
+            this.future = future;
+        }
+
+        private void start() {
+            if (closed) {
+                dispatch(() -> future.completeExceptionally(new IOException("Client closed")));
+                return;
+            }
+            if (future.isDone()) {
+                // Vor dem Start abgebrochen
+                return;
+            }
+            started = System.currentTimeMillis();
+            deadline = started + latency.getTimeout(url.getPath());
+            active.add(this);
+            loop.addHandler(this);
+            IdleConnection connection = pollIdle(address, System.currentTimeMillis());
+            try {
+                if (connection != null) {
+                    channel = connection.channel;
+                    key = connection.key;
+                    reused = true;
+                    key.attach(this);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    connect();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e, true);
+            }
+        }
+
+        private void connect() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(address);
+            key = loop.register(channel, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                } else if (key.isWritable()) {
+                    channel.write(request);
+                    if (!request.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    read();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e, true);
+            }
+        }
+
+        @Override
+        public void checkTimeout(long now) {
+            if (now >= deadline) {
+                latency.recordTimeout(url.getPath());
+                fail(new SocketTimeoutException("Request to " + url.getHost() + " timed out"), false);
+            }
+        }
+
+        private void read() throws IOException {
+            boolean eof = false;
+            int n;
+            while ((n = channel.read(readBuffer)) != 0) {
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                if (length + n > response.length) {
+                    response = Arrays.copyOf(response, Math.max(response.length * 2, length + n));
+                }
+                readBuffer.flip();
+                readBuffer.get(response, length, n);
+                readBuffer.clear();
+                length += n;
+            }
+            parse(eof);
+        }
+
+        private void parse(boolean eof) throws IOException {
+            while (bodyStart < 0) {
+                int end = indexOf(response, 0, length, HEADER_END);
+                if (end < 0) {
+                    if (eof) {
+                        throw new EOFException("Connection closed by " + url.getHost() + " without response");
+                    }
+                    return;
+                }
+                String[] lines = new String(response, 0, end, StandardCharsets.ISO_8859_1).split("\r\n");
+                responseCode = HttpClient.parseStatusCode(lines[0]);
+                headers = new HashMap<>();
+                for (int i = 1; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon > 0) {
+                        headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                lines[i].substring(colon + 1).trim());
+                    }
+                }
+                if (responseCode >= 100 && responseCode < 200) {
+                    // Zwischenantworten (100 Continue) überspringen
+                    int remaining = length - end - HEADER_END.length;
+                    System.arraycopy(response, end + HEADER_END.length, response, 0, remaining);
+                    length = remaining;
+                    continue;
+                }
+                bodyStart = end + HEADER_END.length;
+                if (lines[0].startsWith("HTTP/1.0") && !"keep-alive".equalsIgnoreCase(headers.get("connection"))) {
+                    headers.put("connection", "close");
+                }
+            }
+
+            byte[] body;
+            boolean delimited = true;
+            String contentLength = headers.get("content-length");
+            if ("HEAD".equals(requestMethod) || responseCode == 204 || responseCode == 304) {
+                body = new byte[0];
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = decodeChunked(response, bodyStart, length);
+            } else if (contentLength != null) {
+                int expected = Integer.parseInt(contentLength.trim());
+                body = length - bodyStart >= expected ? Arrays.copyOfRange(response, bodyStart, bodyStart + expected)
+                        : null;
+            } else {
+                // Ohne Längenangabe endet der Body erst mit dem Schließen der Verbindung
+                body = eof ? Arrays.copyOfRange(response, bodyStart, length) : null;
+                delimited = false;
+            }
+            if (body == null) {
+                if (eof) {
+                    throw new EOFException("Unexpected end of HTTP body");
+                }
+                return;
+            }
+            boolean reusable = delimited && !eof && !"close".equalsIgnoreCase(headers.get("connection"));
+            complete(body, reusable);
+        }
+
+        // Die Verbindung wird noch in der Loop freigegeben, dekodiert wird im Executor
+        @SuppressWarnings("unchecked")
+        private void complete(byte[] body, boolean reusable) {
+            finish();
+            latency.recordLatency(url.getPath(), System.currentTimeMillis() - started);
+            if (reusable) {
+                offerIdle(channel, key, address, HttpClient.parseKeepAliveTimeout(headers.get("keep-alive")));
+            } else {
+                closeQuietly(channel);
+            }
+            int code = responseCode;
+            dispatch(() -> {
+                if (code >= 400) {
+                    future.completeExceptionally(new HttpStatusException(
+                            "Server returned HTTP response code: " + code + " for URL: " + url, code));
+                    return;
+                }
+                try {
+                    future.complete(reader == null ? (T) new Result(new String(body, StandardCharsets.UTF_8), code)
+                            : reader.read(new ByteArrayInputStream(body)));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+
+        // Eine wiederverwendete Verbindung, die der Cube inzwischen geschlossen hat, wird einmal neu aufgebaut
+        private void fail(Exception e, boolean retry) {
+            if (channel != null) {
+                closeQuietly(channel);
+            }
+            if (retry && reused && length == 0 && !closed) {
+                reused = false;
+                request.rewind();
+                try {
+                    connect();
+                    return;
+                } catch (IOException | RuntimeException retryFailure) {
+                    e = retryFailure;
+                }
+            }
+            finish();
+            Exception error = e;
+            dispatch(() -> future.completeExceptionally(error));
+        }
+
+        // Der Aufrufer hat das Future abgebrochen, die Verbindung kann nicht wiederverwendet werden
+        private void cancel() {
+            if (active.contains(this)) {
+                finish();
+                if (channel != null) {
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void finish() {
+            active.remove(this);
+            loop.removeHandler(this);
+        }
+    }
+}
@@ -35,6 +35,7 @@ public class Circuit {
     private float brightness;
     private float temperature;
     private boolean externBlock;
+    private boolean stale; // Stand aus dem gespeicherten Snapshot, noch nicht vom Cube bestätigt
 
     public final static Type gsonType = new TypeToken<Map<String, Circuit>>() {
     }.getType();
@@ -42,14 +43,54 @@ public class Circuit {
     Circuit() {
     };
 
+    // Kopie mit allen Werten, params wird nach dem Einlesen nicht mehr verändert und kann geteilt werden
+    private Circuit(Circuit other) {
+        this.wintermode = other.wintermode;
+        this.irrigation = other.irrigation;
+        this.id = other.id;
+        this.openhabId = other.openhabId;
+        this.name = other.name;
+        this.params = other.params;
+        this.nextIrrigationStart = other.nextIrrigationStart;
+        this.nextIrrigationEnd = other.nextIrrigationEnd;
+        this.sensor = other.sensor;
+        this.moisture = other.moisture;
+        this.brightness = other.brightness;
+        this.temperature = other.temperature;
+        this.externBlock = other.externBlock;
+        this.stale = other.stale;
+    }
+
+    // Liefert eine Kopie mit geänderter Bewässerung, z.B. für den erwarteten Stand nach einem Befehl
+    public Circuit withIrrigation(boolean irrigation) {
+        Circuit copy = new Circuit(this);
+        copy.irrigation = irrigation;
+        return copy;
+    }
+
+    // Liefert eine Kopie mit geändertem Wintermodus
+    public Circuit withWintermode(boolean wintermode) {
+        Circuit copy = new Circuit(this);
+        copy.wintermode = wintermode;
+        return copy;
+    }
+
     public State getState() {
         return params;
     }
 
+    void setState(State params) {
+        this.params = params;
+    }
+
     public String getName() {
         return name;
     }
 
+    void setName(String name) {
+        this.name = name;
+    }
+
     void setId(String id) {
         this.id = id;
     }
@@ -102,6 +143,10 @@ public class Circuit {
         return sensor;
     }
 
+    void setSensor(String sensor) {
+        this.sensor = sensor;
+    }
+
     public float getTemperature() {
         return temperature;
     }
@@ -133,4 +178,12 @@ public class Circuit {
     public void setExternBlock(boolean externBlock) {
         this.externBlock = externBlock;
     }
-}
\ No newline at end of file
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    void setStale(boolean stale) {
+        this.stale = stale;
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+/**
+ *
+ * {@link CircuitField} die einzelnen Werte eines Circuits, die sich zwischen zwei Polls ändern können
+ *
+ */
+public enum CircuitField {
+    IRRIGATION,
+    WINTERMODE,
+    NEXT_IRRIGATION_START,
+    NEXT_IRRIGATION_END,
+    BORDER_BOTTOM,
+    BORDER_TOP,
+    CONSIDER_MOWER,
+    EXTERN_BLOCK,
+    TEMPERATURE,
+    MOISTURE,
+    BRIGHTNESS
+}
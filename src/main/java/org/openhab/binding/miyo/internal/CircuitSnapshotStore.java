@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+/**
+ *
+ * {@link CircuitSnapshotStore} speichert den letzten bekannten Stand aller Circuits eines Cubes in einer kompakten
+ * Binärdatei, damit nach einem Neustart sofort Werte angezeigt werden können
+ *
+ * Geladene Circuits sind als stale markiert, bis der erste Poll sie bestätigt.
+ *
+ */
+public class CircuitSnapshotStore {
+    private static final int MAGIC = 0x4d49594f; // "MIYO"
+    private static final int VERSION = 1;
+
+    private static final int FLAG_IRRIGATION = 1;
+    private static final int FLAG_WINTERMODE = 1 << 1;
+    private static final int FLAG_EXTERN_BLOCK = 1 << 2;
+    private static final int FLAG_PARAMS = 1 << 3;
+    private static final int FLAG_CONSIDER_MOWER = 1 << 4;
+
+    private final Path file;
+
+    public CircuitSnapshotStore(Path file) {
+        this.file = file;
+    }
+
+    // Schreibt zuerst in eine temporäre Datei und ersetzt die alte Datei dann in einem Schritt
+    public void write(Collection<Circuit> circuits) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(circuits.size());
+            for (Circuit circuit : circuits) {
+                writeCircuit(out, circuit);
+            }
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Liefert eine leere Liste, wenn noch kein Snapshot existiert
+    public List<Circuit> read() throws IOException {
+        List<Circuit> circuits = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return circuits;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown snapshot format in " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                circuits.add(readCircuit(in));
+            }
+        }
+        return circuits;
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static void writeCircuit(DataOutputStream out, Circuit circuit) throws IOException {
+        State params = circuit.getState();
+        int flags = (circuit.getIrrigation() ? FLAG_IRRIGATION : 0) | (circuit.getWintermode() ? FLAG_WINTERMODE : 0)
+                | (circuit.getExternBlock() ? FLAG_EXTERN_BLOCK : 0) | (params != null ? FLAG_PARAMS : 0)
+                | (params != null && params.getConsiderMower() ? FLAG_CONSIDER_MOWER : 0);
+        out.writeByte(flags);
+        writeString(out, circuit.getId());
+        writeString(out, circuit.getName());
+        writeString(out, circuit.getSensor());
+        if (params != null) {
+            writeString(out, params.getBorderBottom());
+            writeString(out, params.getBorderTop());
+        }
+        writeTime(out, circuit.getNextIrrigationStart());
+        writeTime(out, circuit.getNextIrrigationEnd());
+        out.writeFloat(circuit.getTemperature());
+        out.writeFloat(circuit.getMoisture());
+        out.writeFloat(circuit.getBrightness());
+    }
+
+    private static Circuit readCircuit(DataInputStream in) throws IOException {
+        Circuit circuit = new Circuit();
+        int flags = in.readByte();
+        circuit.setIrrigation((flags & FLAG_IRRIGATION) != 0);
+        circuit.setWintermode((flags & FLAG_WINTERMODE) != 0);
+        circuit.setExternBlock((flags & FLAG_EXTERN_BLOCK) != 0);
+        String id = readString(in);
+        if (id == null) {
+            throw new IOException("Circuit without id in snapshot");
+        }
+        circuit.setId(id);
+        circuit.setOpenhabId(id);
+        circuit.setName(readString(in));
+        circuit.setSensor(readString(in));
+        if ((flags & FLAG_PARAMS) != 0) {
+            State params = new State();
+            params.setBorderBottom(readString(in));
+            params.setBorderTop(readString(in));
+            params.setConsiderMower((flags & FLAG_CONSIDER_MOWER) != 0);
+            circuit.setState(params);
+        }
+        circuit.setIrrigationStart(readTime(in));
+        circuit.setIrrigationEnd(readTime(in));
+        circuit.setTemperature(in.readFloat());
+        circuit.setMoisture(in.readFloat());
+        circuit.setBrightness(in.readFloat());
+        circuit.setStale(true);
+        return circuit;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeTime(DataOutputStream out, DateTime time) throws IOException {
+        out.writeLong(time != null ? time.getMillis() : Long.MIN_VALUE);
+    }
+
+    private static DateTime readTime(DataInputStream in) throws IOException {
+        long millis = in.readLong();
+        return millis != Long.MIN_VALUE ? new DateTime(millis) : null;
+    }
+}
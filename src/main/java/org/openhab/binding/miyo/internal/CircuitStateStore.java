@@ -0,0 +1,376 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+/**
+ *
+ * {@link CircuitStateStore} hält den Stand aller Circuits eines Cubes in parallelen primitiven Arrays
+ *
+ * Jeder Circuit bekommt beim ersten Auftreten einen festen Slot. Die Booleans liegen in BitSets, die Zeiten als
+ * Epoch-Sekunden, Borders und Sensorwerte als float. Gehalten wird der angezeigte Stand, also inklusive der noch nicht
+ * bestätigten Befehle; für Bewässerung und Wintermodus zusätzlich der vom Cube gemeldete Wert. Circuit Objekte
+ * entstehen nur beim Lesen und werden nicht gehalten.
+ *
+ */
+public class CircuitStateStore {
+    public static final long NO_TIME = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final BitSet present = new BitSet();
+    private final BitSet irrigation = new BitSet();
+    private final BitSet wintermode = new BitSet();
+    private final BitSet confirmedIrrigation = new BitSet();
+    private final BitSet confirmedWintermode = new BitSet();
+    private final BitSet externBlock = new BitSet();
+    private final BitSet params = new BitSet();
+    private final BitSet considerMower = new BitSet();
+    private final BitSet stale = new BitSet();
+    // openhabIds, danach die Ids, Namen und Sensoren wie vom Cube gemeldet
+    private String[] circuitIds = new String[INITIAL_CAPACITY];
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] sensors = new String[INITIAL_CAPACITY];
+    private long[] nextIrrigationStart = new long[INITIAL_CAPACITY];
+    private long[] nextIrrigationEnd = new long[INITIAL_CAPACITY];
+    private float[] borderBottom = new float[INITIAL_CAPACITY];
+    private float[] borderTop = new float[INITIAL_CAPACITY];
+    private float[] temperature = new float[INITIAL_CAPACITY];
+    private float[] moisture = new float[INITIAL_CAPACITY];
+    private float[] brightness = new float[INITIAL_CAPACITY];
+
+    // Übernimmt den vom Cube gemeldeten Stand des Circuits, z.B. aus dem Snapshot
+    public synchronized Set<CircuitField> update(Circuit circuit) {
+        return update(circuit, circuit);
+    }
+
+    // Übernimmt den angezeigten Stand und für Bewässerung und Wintermodus zusätzlich den gemeldeten. Liefert die
+    // gegenüber dem bisher angezeigten Stand geänderten Werte; ein neuer Circuit liefert alle Werte. Ohne Änderung
+    // wird nichts alloziert
+    public synchronized Set<CircuitField> update(Circuit reported, Circuit displayed) {
+        int slot = getOrCreateSlot(displayed.getOpenhabId());
+        boolean added = !present.get(slot);
+        confirmedIrrigation.set(slot, reported.getIrrigation());
+        confirmedWintermode.set(slot, reported.getWintermode());
+        Set<CircuitField> changes = Collections.emptySet();
+        long start = toSeconds(displayed.getNextIrrigationStart());
+        long end = toSeconds(displayed.getNextIrrigationEnd());
+        State state = displayed.getState();
+        float bottom = state != null ? parse(state.getBorderBottom()) : Float.NaN;
+        float top = state != null ? parse(state.getBorderTop()) : Float.NaN;
+        boolean mower = state != null && state.getConsiderMower();
+        if (added) {
+            changes = EnumSet.allOf(CircuitField.class);
+        } else {
+            changes = compare(changes, CircuitField.IRRIGATION, irrigation.get(slot) != displayed.getIrrigation());
+            changes = compare(changes, CircuitField.WINTERMODE, wintermode.get(slot) != displayed.getWintermode());
+            changes = compare(changes, CircuitField.NEXT_IRRIGATION_START, nextIrrigationStart[slot] != start);
+            changes = compare(changes, CircuitField.NEXT_IRRIGATION_END, nextIrrigationEnd[slot] != end);
+            changes = compare(changes, CircuitField.BORDER_BOTTOM,
+                    Float.compare(borderBottom[slot], bottom) != 0);
+            changes = compare(changes, CircuitField.BORDER_TOP, Float.compare(borderTop[slot], top) != 0);
+            changes = compare(changes, CircuitField.CONSIDER_MOWER, considerMower.get(slot) != mower);
+            changes = compare(changes, CircuitField.EXTERN_BLOCK,
+                    externBlock.get(slot) != displayed.getExternBlock());
+            changes = compare(changes, CircuitField.TEMPERATURE,
+                    Float.compare(temperature[slot], displayed.getTemperature()) != 0);
+            changes = compare(changes, CircuitField.MOISTURE,
+                    Float.compare(moisture[slot], displayed.getMoisture()) != 0);
+            changes = compare(changes, CircuitField.BRIGHTNESS,
+                    Float.compare(brightness[slot], displayed.getBrightness()) != 0);
+        }
+        // Die Strings des ersten Polls bleiben, solange sich ihr Inhalt nicht ändert
+        ids[slot] = keep(ids[slot], displayed.getId());
+        names[slot] = keep(names[slot], displayed.getName());
+        sensors[slot] = keep(sensors[slot], displayed.getSensor());
+        stale.set(slot, displayed.isStale());
+        if (changes.isEmpty()) {
+            return changes;
+        }
+        present.set(slot);
+        irrigation.set(slot, displayed.getIrrigation());
+        wintermode.set(slot, displayed.getWintermode());
+        externBlock.set(slot, displayed.getExternBlock());
+        params.set(slot, state != null);
+        considerMower.set(slot, mower);
+        nextIrrigationStart[slot] = start;
+        nextIrrigationEnd[slot] = end;
+        borderBottom[slot] = bottom;
+        borderTop[slot] = top;
+        temperature[slot] = displayed.getTemperature();
+        moisture[slot] = displayed.getMoisture();
+        brightness[slot] = displayed.getBrightness();
+        return changes;
+    }
+
+    // Setzt den angezeigten Wert von Bewässerung oder Wintermodus, z.B. den erwarteten Stand nach einem Befehl. Liefert
+    // true, wenn er sich geändert hat
+    public synchronized boolean setDisplayed(int slot, CircuitField field, boolean value) {
+        BitSet values = getDisplayedBits(field);
+        if (values.get(slot) == value) {
+            return false;
+        }
+        values.set(slot, value);
+        return true;
+    }
+
+    public synchronized boolean getDisplayed(int slot, CircuitField field) {
+        return getDisplayedBits(field).get(slot);
+    }
+
+    // Vom Cube zuletzt gemeldeter Wert von Bewässerung oder Wintermodus
+    public synchronized boolean getConfirmed(int slot, CircuitField field) {
+        switch (field) {
+            case IRRIGATION:
+                return confirmedIrrigation.get(slot);
+            case WINTERMODE:
+                return confirmedWintermode.get(slot);
+            default:
+                throw new IllegalArgumentException("No confirmed value for " + field);
+        }
+    }
+
+    // Der Slot bleibt für die Id reserviert, falls der Circuit wieder auftaucht
+    public synchronized void remove(String circuitId) {
+        Integer slot = slots.get(circuitId);
+        if (slot != null) {
+            present.clear(slot);
+        }
+    }
+
+    public synchronized void clear() {
+        present.clear();
+    }
+
+    // Slot des Circuits oder -1, wenn er nicht vorhanden ist
+    public synchronized int getSlot(String circuitId) {
+        Integer slot = slots.get(circuitId);
+        return slot != null && present.get(slot) ? slot : -1;
+    }
+
+    // Nächster belegter Slot ab from oder -1, zum Iterieren über alle Circuits
+    public synchronized int nextSlot(int from) {
+        return present.nextSetBit(from);
+    }
+
+    // Kopie der belegten Slots
+    public synchronized BitSet getSlots() {
+        return (BitSet) present.clone();
+    }
+
+    public synchronized int size() {
+        return present.cardinality();
+    }
+
+    public synchronized boolean isEmpty() {
+        return present.isEmpty();
+    }
+
+    // Angezeigter Stand des Circuits als neues Objekt, null wenn er nicht vorhanden ist
+    public synchronized Circuit getCircuit(String circuitId) {
+        int slot = getSlot(circuitId);
+        return slot >= 0 ? getCircuit(slot) : null;
+    }
+
+    public synchronized Circuit getCircuit(int slot) {
+        return toCircuit(slot, irrigation.get(slot), wintermode.get(slot));
+    }
+
+    // Angezeigter Stand aller Circuits
+    public synchronized List<Circuit> getCircuits() {
+        List<Circuit> circuits = new ArrayList<>(size());
+        for (int slot = present.nextSetBit(0); slot >= 0; slot = present.nextSetBit(slot + 1)) {
+            circuits.add(getCircuit(slot));
+        }
+        return circuits;
+    }
+
+    // Vom Cube gemeldeter Stand aller Circuits ohne die noch nicht bestätigten Befehle, z.B. für den Snapshot
+    public synchronized List<Circuit> getConfirmedCircuits() {
+        List<Circuit> circuits = new ArrayList<>(size());
+        for (int slot = present.nextSetBit(0); slot >= 0; slot = present.nextSetBit(slot + 1)) {
+            circuits.add(toCircuit(slot, confirmedIrrigation.get(slot), confirmedWintermode.get(slot)));
+        }
+        return circuits;
+    }
+
+    public synchronized String getCircuitId(int slot) {
+        return circuitIds[slot];
+    }
+
+    public synchronized boolean getIrrigation(int slot) {
+        return irrigation.get(slot);
+    }
+
+    public synchronized boolean getWintermode(int slot) {
+        return wintermode.get(slot);
+    }
+
+    public synchronized boolean getExternBlock(int slot) {
+        return externBlock.get(slot);
+    }
+
+    public synchronized boolean getConsiderMower(int slot) {
+        return considerMower.get(slot);
+    }
+
+    public synchronized boolean isStale(int slot) {
+        return stale.get(slot);
+    }
+
+    // Epoch-Sekunden oder NO_TIME
+    public synchronized long getNextIrrigationStart(int slot) {
+        return nextIrrigationStart[slot];
+    }
+
+    // Epoch-Sekunden oder NO_TIME
+    public synchronized long getNextIrrigationEnd(int slot) {
+        return nextIrrigationEnd[slot];
+    }
+
+    public synchronized float getBorderBottom(int slot) {
+        return borderBottom[slot];
+    }
+
+    public synchronized float getBorderTop(int slot) {
+        return borderTop[slot];
+    }
+
+    public synchronized float getTemperature(int slot) {
+        return temperature[slot];
+    }
+
+    public synchronized float getMoisture(int slot) {
+        return moisture[slot];
+    }
+
+    public synchronized float getBrightness(int slot) {
+        return brightness[slot];
+    }
+
+    private Circuit toCircuit(int slot, boolean irrigation, boolean wintermode) {
+        Circuit circuit = new Circuit();
+        String id = ids[slot];
+        circuit.setId(id);
+        if (id != null) {
+            circuit.setOpenhabId(id);
+        }
+        circuit.setName(names[slot]);
+        circuit.setSensor(sensors[slot]);
+        circuit.setIrrigation(irrigation);
+        circuit.setWintermode(wintermode);
+        circuit.setExternBlock(externBlock.get(slot));
+        if (params.get(slot)) {
+            State state = new State();
+            state.setBorderBottom(format(borderBottom[slot]));
+            state.setBorderTop(format(borderTop[slot]));
+            state.setConsiderMower(considerMower.get(slot));
+            circuit.setState(state);
+        }
+        circuit.setIrrigationStart(toDateTime(nextIrrigationStart[slot]));
+        circuit.setIrrigationEnd(toDateTime(nextIrrigationEnd[slot]));
+        circuit.setTemperature(temperature[slot]);
+        circuit.setMoisture(moisture[slot]);
+        circuit.setBrightness(brightness[slot]);
+        circuit.setStale(stale.get(slot));
+        return circuit;
+    }
+
+    private BitSet getDisplayedBits(CircuitField field) {
+        switch (field) {
+            case IRRIGATION:
+                return irrigation;
+            case WINTERMODE:
+                return wintermode;
+            default:
+                throw new IllegalArgumentException("Cannot set " + field);
+        }
+    }
+
+    private int getOrCreateSlot(String circuitId) {
+        Integer slot = slots.get(circuitId);
+        if (slot != null) {
+            return slot;
+        }
+        int newSlot = slots.size();
+        if (newSlot == circuitIds.length) {
+            grow(newSlot * 2);
+        }
+        circuitIds[newSlot] = circuitId;
+        slots.put(circuitId, newSlot);
+        return newSlot;
+    }
+
+    private void grow(int capacity) {
+        circuitIds = Arrays.copyOf(circuitIds, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        names = Arrays.copyOf(names, capacity);
+        sensors = Arrays.copyOf(sensors, capacity);
+        nextIrrigationStart = Arrays.copyOf(nextIrrigationStart, capacity);
+        nextIrrigationEnd = Arrays.copyOf(nextIrrigationEnd, capacity);
+        borderBottom = Arrays.copyOf(borderBottom, capacity);
+        borderTop = Arrays.copyOf(borderTop, capacity);
+        temperature = Arrays.copyOf(temperature, capacity);
+        moisture = Arrays.copyOf(moisture, capacity);
+        brightness = Arrays.copyOf(brightness, capacity);
+    }
+
+    private static Set<CircuitField> compare(Set<CircuitField> changes, CircuitField field, boolean changed) {
+        if (!changed) {
+            return changes;
+        }
+        Set<CircuitField> result = changes.isEmpty() ? EnumSet.noneOf(CircuitField.class) : changes;
+        result.add(field);
+        return result;
+    }
+
+    private static String keep(String current, String value) {
+        return Objects.equals(current, value) ? current : value;
+    }
+
+    private static long toSeconds(DateTime time) {
+        return time != null ? time.getMillis() / 1000 : NO_TIME;
+    }
+
+    private static DateTime toDateTime(long seconds) {
+        return seconds != NO_TIME ? new DateTime(seconds * 1000) : null;
+    }
+
+    private static float parse(String value) {
+        if (value == null) {
+            return Float.NaN;
+        }
+        try {
+            return Float.parseFloat(value.trim());
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    // Ganze Zahlen wie vom Cube ohne Nachkommastellen
+    private static String format(float value) {
+        if (Float.isNaN(value)) {
+            return null;
+        }
+        return value == (long) value ? Long.toString((long) value) : Float.toString(value);
+    }
+}
@@ -16,6 +16,8 @@ import com.google.gson.Gson;
  *
  */
 public class Command {
+    private static final Gson GSON = new Gson();
+
     public String key;
     public Object value;
 
@@ -25,7 +27,7 @@ public class Command {
     }
 
     String toJson() {
-        return "\"" + key + "\":" + new Gson().toJson(value);
+        return "\"" + key + "\":" + GSON.toJson(value);
     }
 
 }
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * {@link ConnectionBreaker} ein Circuit Breaker für die Verbindung zu einem Cube (nicht zu verwechseln mit den
+ * Circuits der Bewässerung)
+ *
+ * Nach mehreren aufeinanderfolgenden Verbindungsfehlern wird der Breaker geöffnet und Requests werden ohne Netzwerk
+ * abgelehnt. Nach einer Wartezeit lässt er im Zustand HALF_OPEN genau einen Request als Probe durch: Antwortet der
+ * Cube, wird er wieder geschlossen, sonst verdoppelt sich die Wartezeit bis zu einem Maximum. Die Wartezeit wird
+ * zufällig zwischen der Hälfte und dem vollen Wert gewählt, damit nach einem WLAN-Ausfall nicht alle Verbindungen
+ * gleichzeitig wieder aufgebaut werden.
+ *
+ */
+public class ConnectionBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+
+    private final CubeMetrics metrics;
+    private State state = State.CLOSED;
+    private int failures;
+    private long backoff = INITIAL_BACKOFF;
+    private long retryAt;
+
+    ConnectionBreaker(CubeMetrics metrics) {
+        this.metrics = metrics;
+        metrics.recordBreakerState(state, false, 0);
+    }
+
+    // true, wenn ein Request gesendet werden darf. Im Zustand OPEN wird nach Ablauf der Wartezeit genau ein Aufrufer
+    // als Probe zugelassen; dieser muss sein Ergebnis mit recordSuccess bzw. recordFailure melden
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() >= retryAt) {
+                    setState(State.HALF_OPEN, false);
+                    return true;
+                }
+                return false;
+            default:
+                // Die Probe läuft noch
+                return false;
+        }
+    }
+
+    // Der Cube hat geantwortet, auch eine Fehlermeldung der API zählt als Antwort
+    synchronized void recordSuccess() {
+        if (state == State.OPEN) {
+            // Antwort auf einen Request von vor dem Öffnen
+            return;
+        }
+        failures = 0;
+        backoff = INITIAL_BACKOFF;
+        if (state != State.CLOSED) {
+            setState(State.CLOSED, false);
+        }
+    }
+
+    synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            open();
+        } else if (state == State.CLOSED && ++failures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    // Der Request wurde abgebrochen, ohne dass feststeht ob der Cube antwortet; eine laufende Probe darf sofort
+    // wiederholt werden
+    synchronized void recordAborted() {
+        if (state == State.HALF_OPEN) {
+            retryAt = System.currentTimeMillis();
+            setState(State.OPEN, false);
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    // Zeit bis zur nächsten Probe in ms, 0 wenn der Breaker geschlossen ist oder eine Probe gesendet werden darf
+    synchronized long getRetryDelay() {
+        return state == State.OPEN ? Math.max(0, retryAt - System.currentTimeMillis()) : 0;
+    }
+
+    private void open() {
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        retryAt = System.currentTimeMillis() + delay;
+        setState(State.OPEN, state == State.CLOSED);
+    }
+
+    private void setState(State state, boolean tripped) {
+        this.state = state;
+        metrics.recordBreakerState(state, tripped, state == State.OPEN ? retryAt : 0);
+    }
+}
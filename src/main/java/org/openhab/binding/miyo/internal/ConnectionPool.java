@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * {@link ConnectionPool} hält HTTP/1.1 Keep-Alive Verbindungen pro Host offen, damit nicht für jeden Request ein neuer
+ * TCP-Handshake mit dem Cube nötig ist
+ *
+ * Der Pool kennt auch die gerade benutzten und im Aufbau befindlichen Sockets. {@link #close()} schließt sie, so dass
+ * ein Thread, der in connect() oder read() auf den Cube wartet, sofort mit einer IOException zurückkehrt.
+ *
+ */
+class ConnectionPool {
+    private final int maxConnectionsPerHost;
+    private final long keepAliveMillis;
+    private final Map<String, Route> routes = new HashMap<>();
+    // Verbindungen, die gerade von einem Request benutzt oder aufgebaut werden
+    private final Set<Socket> inUse = new HashSet<>();
+    private boolean closed;
+
+    ConnectionPool(int maxConnectionsPerHost, long keepAliveMillis) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    // Liefert eine Verbindung zum Host, wartet höchstens timeout ms auf einen freien Platz. Bei reuse == false wird
+    // immer eine neue Verbindung aufgebaut
+    Connection acquire(String host, int port, int timeout, boolean reuse) throws IOException {
+        Route route;
+        synchronized (this) {
+            String key = host + ":" + port;
+            route = routes.get(key);
+            if (route == null) {
+                route = new Route();
+                routes.put(key, route);
+            }
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (!closed && route.leased >= maxConnectionsPerHost) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new IOException(
+                                "No free connection to " + host + ":" + port + " within " + timeout + " ms");
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a connection to " + host);
+            }
+            if (closed) {
+                throw new IOException("Connection pool is closed");
+            }
+            route.leased++;
+            evictIdle(route, System.currentTimeMillis());
+            Connection connection = reuse ? route.idle.pollFirst() : null;
+            if (connection != null) {
+                connection.reused = true;
+                inUse.add(connection.socket);
+                return connection;
+            }
+        }
+        Socket socket = null;
+        try {
+            socket = connect(host, port, timeout);
+            return new Connection(route, socket);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                if (socket != null) {
+                    inUse.remove(socket);
+                    closeQuietly(socket);
+                }
+                route.leased--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    // Baut eine Verbindung auf, die bis zum release bzw. close des Aufrufers in inUse steht und von close()
+    // abgebrochen werden kann
+    Socket connect(String host, int port, int timeout) throws IOException {
+        Socket socket = new Socket();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection pool is closed");
+            }
+            inUse.add(socket);
+        }
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                inUse.remove(socket);
+                if (closed) {
+                    throw new IOException("Connection pool is closed");
+                }
+            }
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    // Schließt eine mit connect aufgebaute Verbindung, die nicht in den Pool gehört
+    void disconnect(Socket socket) {
+        synchronized (this) {
+            inUse.remove(socket);
+        }
+        closeQuietly(socket);
+    }
+
+    // Gibt die Verbindung zurück; nicht wiederverwendbare Verbindungen werden geschlossen
+    void release(Connection connection, boolean reusable, long keepAliveHint) {
+        Route route = connection.route;
+        long now = System.currentTimeMillis();
+        boolean pooled = false;
+        synchronized (this) {
+            inUse.remove(connection.socket);
+            route.leased--;
+            notifyAll();
+            if (reusable && !closed && !connection.socket.isClosed()) {
+                long keepAlive = keepAliveHint > 0 ? Math.min(keepAliveMillis, keepAliveHint) : keepAliveMillis;
+                connection.expiresAt = now + keepAlive;
+                route.idle.addFirst(connection);
+                pooled = true;
+            }
+            evictIdle(route, now);
+        }
+        if (!pooled) {
+            connection.close();
+        }
+    }
+
+    // Schließt alle Verbindungen, auch die laufender Requests. Diese brechen mit einer IOException ab, ebenso alle
+    // Aufrufer, die noch auf eine freie Verbindung warten
+    void close() {
+        synchronized (this) {
+            closed = true;
+            for (Route route : routes.values()) {
+                for (Connection connection : route.idle) {
+                    connection.close();
+                }
+                route.idle.clear();
+            }
+            for (Socket socket : inUse) {
+                closeQuietly(socket);
+            }
+            inUse.clear();
+            notifyAll();
+        }
+    }
+
+    synchronized int getIdleCount() {
+        int count = 0;
+        for (Route route : routes.values()) {
+            count += route.idle.size();
+        }
+        return count;
+    }
+
+    private void evictIdle(Route route, long now) {
+        Iterator<Connection> it = route.idle.iterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (connection.expiresAt <= now || connection.socket.isClosed()) {
+                it.remove();
+                connection.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Verbindung ist ohnehin nicht mehr nutzbar
+        }
+    }
+
+    private static class Route {
+        private final Deque<Connection> idle = new ArrayDeque<>();
+        // Verbindungen dieses Hosts, die gerade von einem Request benutzt oder aufgebaut werden
+        private int leased;
+    }
+
+    static class Connection {
+        private final Route route;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long expiresAt;
+        private boolean reused;
+
+        private Connection(Route route, Socket socket) throws IOException {
+            this.route = route;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        InputStream getInputStream() {
+            return in;
+        }
+
+        OutputStream getOutputStream() {
+            return out;
+        }
+
+        boolean isReused() {
+            return reused;
+        }
+
+        void setTimeout(int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Verbindung ist ohnehin nicht mehr nutzbar
+            }
+        }
+    }
+}
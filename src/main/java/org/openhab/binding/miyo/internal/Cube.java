@@ -8,25 +8,39 @@
  */
 package org.openhab.binding.miyo.internal;
 
+import static org.openhab.binding.miyo.internal.CubeResponseDecoder.STATUS_ERROR;
+
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
-import org.joda.time.DateTime;
+import org.openhab.binding.miyo.internal.CubeResponseDecoder.CircuitsResponse;
+import org.openhab.binding.miyo.internal.CubeResponseDecoder.SensorResponse;
 import org.openhab.binding.miyo.internal.HttpClient.Result;
 import org.openhab.binding.miyo.internal.exceptions.ApiException;
+import org.openhab.binding.miyo.internal.exceptions.CubeUnavailableException;
+import org.openhab.binding.miyo.internal.exceptions.HttpStatusException;
 import org.openhab.binding.miyo.internal.exceptions.IrrigationException;
 import org.openhab.binding.miyo.internal.exceptions.LinkButtonException;
 import org.openhab.binding.miyo.internal.exceptions.UnauthorizedException;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
@@ -38,25 +52,116 @@ import com.google.gson.JsonParser;
 
 @NonNullByDefault
 public class Cube {
-    private final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+    private static final long DEFAULT_SENSOR_REFRESH_INTERVAL = 300000;
+    private static final long DEFAULT_SNAPSHOT_MAX_AGE = 5000;
+    // Timeout für Verbindungsaufbau und Antwort von probe(), in ms
+    private static final int PROBE_CONNECT_TIMEOUT = 1000;
+    // So lange wird das Ergebnis von probe() wiederverwendet
+    private static final long PROBE_CACHE_TTL = 2000;
     private @Nullable String username;
     private final String ip;
-    private final Gson gson = new GsonBuilder().setDateFormat(DATE_FORMAT).create();
     private final JsonParser parser = new JsonParser();
     private HttpClient http = new HttpClient();
+    private @Nullable AsyncHttpClient asyncHttp;
+    // Dekodiert die Antworten des AsyncHttpClient, null für dessen Standard
+    private @Nullable Executor responseExecutor;
+    private volatile boolean closed;
+    private final CubeMetrics metrics;
+    // Antwortzeiten und Timeouts pro Endpunkt, gemeinsam für den HttpClient und den AsyncHttpClient
+    private final LatencyEstimator latency;
+    private final ConnectionBreaker breaker;
+    private final RequestScheduler requestScheduler;
+    private final SensorCache sensorCache = new SensorCache(DEFAULT_SENSOR_REFRESH_INTERVAL);
+    private final Object sweepLock = new Object();
+    private @Nullable CompletableFuture<List<Circuit>> inFlight;
+    private @Nullable String inFlightApiKey;
+    // Priorität der laufenden Abfrage, ein wartender Aufrufer mit höherer Priorität hebt sie an
+    private final AtomicReference<RequestPriority> inFlightPriority = new AtomicReference<>(RequestPriority.POLL);
+    // Plätze im RequestScheduler, auf die Requests der laufenden Abfrage noch warten; sie werden mit ihr angehoben
+    private final Set<CompletableFuture<RequestPriority>> sweepSlots = ConcurrentHashMap.newKeySet();
+    private @Nullable Sweep lastSweep;
+    private volatile long snapshotMaxAge = DEFAULT_SNAPSHOT_MAX_AGE;
+    private final Object probeLock = new Object();
+    private @Nullable Probe lastProbe;
 
     public Cube(String ip) {
+        this(ip, new CubeMetrics());
+    }
+
+    public Cube(String ip, CubeMetrics metrics) {
         this.ip = ip;
+        this.metrics = metrics;
+        this.requestScheduler = new RequestScheduler(HttpClient.DEFAULT_MAX_CONNECTIONS_PER_HOST, metrics);
+        this.latency = new LatencyEstimator(1000, 1000, metrics);
+        this.breaker = new ConnectionBreaker(metrics);
+        http.setLatencyEstimator(latency);
     }
 
     public Cube(String ip, String username) throws IOException, ApiException {
-        this.ip = ip;
+        this(ip);
         authenticate(username);
     }
 
     // Setzen des Connect und Read Timeout für Http Anfragen
     public void setTimeout(int timeout) {
-        http.setTimeout(timeout);
+        latency.setBounds(timeout, timeout);
+    }
+
+    // Der Timeout jedes Endpunkts wird aus dessen gemessenen Antwortzeiten abgeleitet und auf [minTimeout,
+    // maxTimeout] begrenzt. Ein ausgefallener Cube fällt so nach wenigen hundert ms auf statt erst nach maxTimeout
+    public void setTimeout(int minTimeout, int maxTimeout) {
+        latency.setBounds(minTimeout, maxTimeout);
+    }
+
+    // Executor, in dem die Antworten der asynchronen Requests dekodiert und deren Callbacks ausgeführt werden
+    public synchronized void setExecutor(Executor executor) {
+        responseExecutor = executor;
+        if (asyncHttp != null) {
+            asyncHttp.setExecutor(executor);
+        }
+    }
+
+    // Wie lange die Sensorwerte gecacht werden (ms), 0 fragt die Sensoren bei jedem Poll ab
+    public void setSensorRefreshInterval(long sensorRefreshInterval) {
+        sensorCache.setRefreshInterval(sensorRefreshInterval);
+    }
+
+    // Wie alt das Ergebnis von getRecentCircuits höchstens sein darf (ms)
+    public void setSnapshotMaxAge(long snapshotMaxAge) {
+        this.snapshotMaxAge = snapshotMaxAge;
+    }
+
+    // Bricht alle laufenden und wartenden Requests sofort ab und schließt die Verbindungen zum Cube. Danach nimmt der
+    // Cube keine Requests mehr an
+    public void close() {
+        closed = true;
+        requestScheduler.close();
+        synchronized (this) {
+            if (asyncHttp != null) {
+                asyncHttp.close();
+                asyncHttp = null;
+            }
+        }
+        sensorCache.clear();
+        synchronized (sweepLock) {
+            lastSweep = null;
+        }
+        http.close();
+    }
+
+    public CubeMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Solange der Breaker nicht CLOSED ist, werden Requests ohne Netzwerk mit einer CubeUnavailableException
+    // abgelehnt; nur probe() prüft nach Ablauf der Wartezeit, ob der Cube wieder antwortet
+    public ConnectionBreaker.State getBreakerState() {
+        return breaker.getState();
+    }
+
+    // Zeit bis zur nächsten Probe in ms, 0 wenn sie sofort gesendet werden darf
+    public long getBreakerRetryDelay() {
+        return breaker.getRetryDelay();
     }
 
     public String getIp() {
@@ -72,14 +177,100 @@ public class Cube {
         return getUsername() != null;
     }
 
+    // Prüft nur den API-Key, ohne Sensoren abzufragen
     public void authenticate(String username) throws IOException, ApiException {
+        this.username = username;
+        boolean valid;
         try {
-            this.username = username;
-            getCircuits();
+            valid = isApiKeyValid(username);
         } catch (ApiException e) {
             this.username = null;
             throw new UnauthorizedException(e.toString());
         }
+        if (!valid) {
+            this.username = null;
+            throw new UnauthorizedException("API key not accepted by the MIYOCube");
+        }
+        storeProbe(username, ProbeResult.OK);
+    }
+
+    // Schneller Test, ob der Cube erreichbar ist und den API-Key akzeptiert: erst ein TCP-Connect, dann eine Abfrage,
+    // von der nur der Status gelesen wird, beides mit PROBE_CONNECT_TIMEOUT. Das Ergebnis wird kurz gecacht. Bei
+    // offenem Breaker ist das die einzelne Probe, die er nach Ablauf der Wartezeit durchlässt; bis dahin ist das
+    // Ergebnis ohne Netzwerk UNREACHABLE. Bei geschlossenem Breaker klärt die Probe nur den Fehler einer Abfrage, die
+    // der Breaker schon gezählt hat, und meldet ihm deshalb nichts
+    public ProbeResult probe() {
+        String apiKey = username;
+        synchronized (probeLock) {
+            Probe last = lastProbe;
+            // Bei offenem Breaker entscheidet er, wann wieder gefragt wird
+            if (last != null && Objects.equals(last.apiKey, apiKey)
+                    && breaker.getState() == ConnectionBreaker.State.CLOSED
+                    && System.currentTimeMillis() - last.probedAt <= PROBE_CACHE_TTL) {
+                return last.result;
+            }
+        }
+        boolean trial;
+        synchronized (breaker) {
+            trial = breaker.getState() != ConnectionBreaker.State.CLOSED;
+            if (!breaker.tryAcquire()) {
+                return ProbeResult.UNREACHABLE;
+            }
+        }
+        ProbeResult result;
+        Throwable error = null;
+        try {
+            http.connect("http://" + ip, PROBE_CONNECT_TIMEOUT);
+            result = apiKey == null || !probeApiKey(apiKey) ? ProbeResult.UNAUTHORIZED : ProbeResult.OK;
+        } catch (HttpStatusException e) {
+            // Der Cube hat geantwortet, nur 401 und 403 sagen etwas über den API-Key
+            error = e;
+            result = isAuthError(e.getStatusCode()) ? ProbeResult.UNAUTHORIZED : ProbeResult.OK;
+        } catch (IOException e) {
+            error = e;
+            result = ProbeResult.UNREACHABLE;
+        } catch (ApiException e) {
+            error = e;
+            result = ProbeResult.UNAUTHORIZED;
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (trial) {
+                recordOutcome(error);
+            }
+        }
+        storeProbe(apiKey, result);
+        return result;
+    }
+
+    private static boolean isAuthError(int statusCode) {
+        return statusCode == 401 || statusCode == 403;
+    }
+
+    private void storeProbe(@Nullable String apiKey, ProbeResult result) {
+        synchronized (probeLock) {
+            lastProbe = new Probe(apiKey, result, System.currentTimeMillis());
+        }
+    }
+
+    private boolean isApiKeyValid(String apiKey) throws IOException, ApiException {
+        return guarded(() -> checkApiKey(apiKey));
+    }
+
+    // Von /api/circuit/all wird nur der Status gelesen, die Circuits werden übersprungen
+    private boolean checkApiKey(String apiKey) throws IOException, ApiException {
+        String status = send(RequestPriority.REFRESH, () -> http
+                .post("http://" + ip + "/api/circuit/all?apiKey=" + apiKey, "", CubeResponseDecoder::readStatus));
+        return !STATUS_ERROR.equals(status);
+    }
+
+    // Wie checkApiKey, aber mit dem kurzen Timeout der Probe statt des Timeouts für Abfragen
+    private boolean probeApiKey(String apiKey) throws IOException, ApiException {
+        String status = send(RequestPriority.REFRESH, () -> http.post(
+                "http://" + ip + "/api/circuit/all?apiKey=" + apiKey, "", PROBE_CONNECT_TIMEOUT,
+                CubeResponseDecoder::readStatus));
+        return !STATUS_ERROR.equals(status);
     }
 
     // Verbinden mit dem Cube erfolgt hier, hier wird der API-Key beantragt
@@ -88,7 +279,7 @@ public class Cube {
             throw new IllegalStateException("already linked");
         }
         // Anfrage des API-Keys
-        Result result = http.post("http://" + ip + "/api/link", "");
+        Result result = read(RequestPriority.COMMAND, () -> http.post("http://" + ip + "/api/link", ""));
         String erg = result.getBody();
         if (parser.parse(erg).getAsJsonObject().get("status").getAsString().equals("error")) {
             throw new LinkButtonException("Pairing button not pressed");
@@ -104,92 +295,237 @@ public class Cube {
         }
     }
 
-    // Gibt eine Liste mit allen der Bridge/Cube bekannten Circuits aus und deren vollständige Konfiguration
+    // Gibt eine Liste mit allen der Bridge/Cube bekannten Circuits aus und deren vollständige Konfiguration. Läuft
+    // bereits eine Abfrage mit demselben API-Key, wird deren Ergebnis mitbenutzt statt eine neue zu starten
     public List<Circuit> getCircuits() throws IOException, ApiException {
+        return getCircuits(RequestPriority.POLL);
+    }
+
+    public List<Circuit> getCircuits(RequestPriority priority) throws IOException, ApiException {
         requireAuthentication();
-        Result result = http.post("http://" + ip + "/api/circuit/all?apiKey=" + username, "");
-        if (parser.parse(result.getBody()).getAsJsonObject().get("status").getAsString().equals("error")) {
-            throw new ApiException("Error bei Http-Request");
-        }
-        JsonObject data = parser.parse(result.getBody()).getAsJsonObject().get("params").getAsJsonObject();
-        JsonObject c = parser.parse(data.toString()).getAsJsonObject().get("circuits").getAsJsonObject();
-        ArrayList<Circuit> circuitList = new ArrayList<>();
-        Set<Entry<String, JsonElement>> circuitSet = c.entrySet();
-        for (Entry<String, JsonElement> entry : circuitSet) {
-            // circuit mit id, name und params (Bordertop, Borderbottom und considerMower) wird automatisch erzeugt
-            Circuit circuit = safeFromJson(entry.getValue().toString(), Circuit.class);
-            // Weiteres Parsen um irrigation, wintermode, nextirrigationStart und nextirrigationStop zu setzen
-            JsonObject statetypes = parser.parse(entry.getValue().toString()).getAsJsonObject().get("stateTypes")
-                    .getAsJsonObject();
-
-            // Neues Parsen ab hier Es werden irrigationMode, winterMode, irrigationNextStart bzw. End und externBlock
-            // gesetzt
-            Set<Entry<String, JsonElement>> statetypesSet = statetypes.entrySet();
-            for (Entry<String, JsonElement> state : statetypesSet) {
-                String type = parser.parse(state.getValue().toString()).getAsJsonObject().get("type").getAsString();
-                if (type.equals("irrigation")) {
-                    boolean irrigationMode = parser.parse(state.getValue().toString()).getAsJsonObject().get("value")
-                            .getAsBoolean();
-                    circuit.setIrrigation(irrigationMode);
-                } else if (type.equals("winterMode")) {
-                    boolean winter = parser.parse(state.getValue().toString()).getAsJsonObject().get("value")
-                            .getAsBoolean();
-                    circuit.setWintermode(winter);
-                } else if (type.equals("irrigationNextStart")) {
-                    long start = parser.parse(state.getValue().toString()).getAsJsonObject().get("value").getAsLong();
-                    circuit.setIrrigationStart(new DateTime(start * 1000));
-                } else if (type.equals("irrigationNextEnd")) {
-                    long end = parser.parse(state.getValue().toString()).getAsJsonObject().get("value").getAsLong();
-                    circuit.setIrrigationEnd(new DateTime(end * 1000));
-                } else if (type.equals("externBlock")) {
-                    boolean externBlock = parser.parse(state.getValue().toString()).getAsJsonObject().get("value")
-                            .getAsBoolean();
-                    circuit.setExternBlock(externBlock);
+        String apiKey = username;
+        CompletableFuture<List<Circuit>> sweep = new CompletableFuture<>();
+        CompletableFuture<List<Circuit>> running = startSweep(apiKey, priority, sweep);
+        if (running != sweep) {
+            return await(running);
+        }
+        // Die Abfrage läuft im aufrufenden Thread, weitere Aufrufer warten auf deren Ergebnis. Für den
+        // ConnectionBreaker zählt sie mit allen Sensorabfragen als eine Operation
+        try {
+            List<Circuit> circuits = Collections.unmodifiableList(guarded(() -> fetchCircuits(apiKey)));
+            finishSweep(sweep, apiKey, circuits);
+            sweep.complete(circuits);
+            return circuits;
+        } catch (IOException | ApiException | RuntimeException e) {
+            finishSweep(sweep, apiKey, null);
+            sweep.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // Wie getCircuits, ohne dass ein Thread auf den Cube wartet. Fehler werden als CompletionException mit der
+    // IOException bzw. ApiException als Ursache gemeldet
+    public CompletableFuture<List<Circuit>> getCircuitsAsync() {
+        return getCircuitsAsync(RequestPriority.POLL);
+    }
+
+    public CompletableFuture<List<Circuit>> getCircuitsAsync(RequestPriority priority) {
+        String apiKey = username;
+        if (apiKey == null) {
+            return failed(new IllegalStateException("Linking is required before interacting with the MIYOCube"));
+        }
+        CompletableFuture<List<Circuit>> sweep = new CompletableFuture<>();
+        CompletableFuture<List<Circuit>> running = startSweep(apiKey, priority, sweep);
+        if (running == sweep) {
+            guardedAsync(() -> fetchCircuitsAsync(apiKey)).whenComplete((circuits, error) -> {
+                if (circuits != null) {
+                    List<Circuit> result = Collections.unmodifiableList(circuits);
+                    finishSweep(sweep, apiKey, result);
+                    sweep.complete(result);
+                } else {
+                    finishSweep(sweep, apiKey, null);
+                    sweep.completeExceptionally(unwrap(error));
                 }
+            });
+        }
+        // Der Aufrufer bekommt ein eigenes Future, damit er die gemeinsame Abfrage nicht abschließen kann
+        return running.thenApply(Function.identity());
+    }
+
+    // Liefert sweep, wenn der Aufrufer die Abfrage selbst ausführen muss, sonst die bereits laufende Abfrage. Deren
+    // bereits eingereihte Requests rücken mit der höheren Priorität des Aufrufers in der Warteschlange nach vorne
+    private CompletableFuture<List<Circuit>> startSweep(String apiKey, RequestPriority priority,
+            CompletableFuture<List<Circuit>> sweep) {
+        CompletableFuture<List<Circuit>> running;
+        RequestPriority raised;
+        synchronized (sweepLock) {
+            running = inFlight;
+            if (running == null || !apiKey.equals(inFlightApiKey)) {
+                inFlight = sweep;
+                inFlightApiKey = apiKey;
+                inFlightPriority.set(priority);
+                return sweep;
             }
+            raised = inFlightPriority.accumulateAndGet(priority, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+        }
+        for (CompletableFuture<RequestPriority> slot : sweepSlots) {
+            requestScheduler.raise(slot, raised);
+        }
+        return running;
+    }
 
-            if (!circuit.getSensor().equals("0")) {
-                Result result2 = http.get(
-                        "http://" + ip + "/api/device/status?apiKey=" + username + "&deviceId=" + circuit.getSensor());
-                if (parser.parse(result2.getBody()).getAsJsonObject().get("status").getAsString().equals("error")) {
-                    throw new ApiException("Error bei Http-Request Sensor");
-                }
-                // Parsen des http-Results
-                JsonObject params = parser.parse(result2.getBody()).getAsJsonObject().get("params").getAsJsonObject();
-                JsonObject device = parser.parse(params.toString()).getAsJsonObject().get("device").getAsJsonObject();
-                JsonObject states = parser.parse(device.toString()).getAsJsonObject().get("stateTypes")
-                        .getAsJsonObject();
-                Set<Entry<String, JsonElement>> entries = states.entrySet();
-                for (Entry<String, JsonElement> element : entries) {
-                    String type = parser.parse(element.getValue().toString()).getAsJsonObject().get("type")
-                            .getAsString();
-                    if (type.equals("temperature")) {
-                        circuit.setTemperature(parser.parse(element.getValue().toString()).getAsJsonObject()
-                                .get("value").getAsFloat());
-                    } else if (type.equals("moisture")) {
-                        circuit.setMoisture(parser.parse(element.getValue().toString()).getAsJsonObject().get("value")
-                                .getAsFloat());
-                    } else if (type.equals("brightness")) {
-                        circuit.setBrightness(parser.parse(element.getValue().toString()).getAsJsonObject().get("value")
-                                .getAsFloat());
+    // Wie getCircuits, liefert aber das Ergebnis der letzten Abfrage, wenn es nicht älter als snapshotMaxAge ist.
+    // Eine neue Abfrage läuft als REFRESH, da hier jemand aktiv auf das Ergebnis wartet
+    public List<Circuit> getRecentCircuits() throws IOException, ApiException {
+        requireAuthentication();
+        synchronized (sweepLock) {
+            Sweep last = lastSweep;
+            if (last != null && last.apiKey.equals(username)
+                    && System.currentTimeMillis() - last.completedAt <= snapshotMaxAge) {
+                return last.circuits;
+            }
+        }
+        return getCircuits(RequestPriority.REFRESH);
+    }
+
+    private void finishSweep(CompletableFuture<List<Circuit>> sweep, String apiKey, @Nullable List<Circuit> circuits) {
+        synchronized (sweepLock) {
+            if (inFlight == sweep) {
+                inFlight = null;
+                inFlightApiKey = null;
+            }
+            if (circuits != null) {
+                lastSweep = new Sweep(apiKey, circuits, System.currentTimeMillis());
+            }
+        }
+    }
+
+    private List<Circuit> fetchCircuits(String apiKey) throws IOException, ApiException {
+        // Die Antwort wird in einem Durchlauf direkt aus der Verbindung gelesen
+        CircuitsResponse response = send(inFlightPriority.get(), () -> http
+                .post("http://" + ip + "/api/circuit/all?apiKey=" + apiKey, "", CubeResponseDecoder::readCircuits));
+        if (STATUS_ERROR.equals(response.status)) {
+            // Der Cube lehnt den API-Key ab
+            throw new UnauthorizedException("Error bei Http-Request");
+        }
+        // Sensorwerte aus dem Cache nehmen, veraltete parallel über den AsyncHttpClient abfragen, so dass dafür keine
+        // eigenen Threads nötig sind. Jeder Sensor wird nur einmal abgefragt, auch wenn ihn mehrere Circuits nutzen
+        Map<String, SensorStatus> sensors = new HashMap<>();
+        Map<String, Future<SensorStatus>> sensorRequests = new HashMap<>();
+        try {
+            for (String sensor : collectSensors(response.circuits, sensors)) {
+                sensorRequests.put(sensor, getSensorStatusAsync(apiKey, sensor));
+            }
+            for (Map.Entry<String, Future<SensorStatus>> sensorRequest : sensorRequests.entrySet()) {
+                SensorStatus status = await(sensorRequest.getValue());
+                sensorCache.put(sensorRequest.getKey(), status, System.currentTimeMillis());
+                sensors.put(sensorRequest.getKey(), status);
+            }
+        } finally {
+            // Bei einem Fehler werden die restlichen Sensoren nicht mehr abgewartet
+            for (Future<SensorStatus> sensorRequest : sensorRequests.values()) {
+                sensorRequest.cancel(true);
+            }
+        }
+        return applySensors(response.circuits, sensors);
+    }
+
+    private CompletableFuture<List<Circuit>> fetchCircuitsAsync(String apiKey) {
+        return readAsync(inFlightPriority.get(),
+                () -> getAsyncHttp().post("http://" + ip + "/api/circuit/all?apiKey=" + apiKey, "",
+                        CubeResponseDecoder::readCircuits), true)
+                .thenCompose(response -> {
+                    if (STATUS_ERROR.equals(response.status)) {
+                        throw new CompletionException(new UnauthorizedException("Error bei Http-Request"));
+                    }
+                    Map<String, SensorStatus> sensors = new HashMap<>();
+                    Map<String, CompletableFuture<SensorStatus>> sensorRequests = new HashMap<>();
+                    for (String sensor : collectSensors(response.circuits, sensors)) {
+                        sensorRequests.put(sensor, getSensorStatusAsync(apiKey, sensor));
                     }
+                    return CompletableFuture.allOf(sensorRequests.values().toArray(new CompletableFuture<?>[0]))
+                            .thenApply(ignored -> {
+                                for (Map.Entry<String, CompletableFuture<SensorStatus>> sensorRequest : sensorRequests
+                                        .entrySet()) {
+                                    SensorStatus status = sensorRequest.getValue().join();
+                                    sensorCache.put(sensorRequest.getKey(), status, System.currentTimeMillis());
+                                    sensors.put(sensorRequest.getKey(), status);
+                                }
+                                return applySensors(response.circuits, sensors);
+                            });
+                });
+    }
+
+    // Übernimmt die gecachten Sensorwerte in sensors und liefert die Sensoren, die neu abgefragt werden müssen
+    private List<String> collectSensors(List<Circuit> circuits, Map<String, SensorStatus> sensors) {
+        long now = System.currentTimeMillis();
+        List<String> stale = new ArrayList<>();
+        for (Circuit circuit : circuits) {
+            String sensor = circuit.getSensor();
+            if (sensor != null && !sensor.equals("0") && !sensors.containsKey(sensor) && !stale.contains(sensor)) {
+                SensorStatus cached = sensorCache.getFresh(sensor, now);
+                if (cached != null) {
+                    sensors.put(sensor, cached);
+                } else {
+                    stale.add(sensor);
                 }
             }
+        }
+        return stale;
+    }
 
-            // Setzen der OpenhabId und Hinzufügen zur Liste
+    private List<Circuit> applySensors(List<Circuit> circuits, Map<String, SensorStatus> sensors) {
+        sensorCache.retain(sensors.keySet());
+        for (Circuit circuit : circuits) {
+            SensorStatus status = circuit.getSensor() != null ? sensors.get(circuit.getSensor()) : null;
+            if (status != null) {
+                status.applyTo(circuit);
+            }
+            // Setzen der OpenhabId
             circuit.setOpenhabId(circuit.getId());
-            circuitList.add(circuit);
         }
-        return circuitList;
+        return circuits;
+    }
+
+    private CompletableFuture<SensorStatus> getSensorStatusAsync(String apiKey, String sensor) {
+        CompletableFuture<SensorResponse> request = readAsync(inFlightPriority.get(),
+                () -> getAsyncHttp().get("http://" + ip + "/api/device/status?apiKey=" + apiKey + "&deviceId=" + sensor,
+                        CubeResponseDecoder::readSensorStatus), true);
+        return cancelling(request.thenApply(sensorResponse -> {
+            if (STATUS_ERROR.equals(sensorResponse.status)) {
+                throw new CompletionException(new ApiException("Error bei Http-Request Sensor"));
+            }
+            return sensorResponse.sensor;
+        }), request);
+    }
+
+    private <T> T await(Future<T> request) throws IOException, ApiException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the MIYOCube");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ApiException) {
+                throw (ApiException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ApiException("Request failed: " + cause);
+        }
     }
 
     // Starten bzw. Stoppen der Bewässerung des circuits
     public void setIrrigation(Circuit circuit, StateUpdate stateUpdate) throws IOException, ApiException {
         requireAuthentication();
-        String mode = (String) (stateUpdate.commands.get(0).value);
-        Result result = http.post("http://" + ip + "/api/circuit/irrigation?apiKey=" + username + "&mode=" + mode
-                + "&circuitId=" + circuit.getId(), "");
-        if (parser.parse(result.getBody()).getAsJsonObject().get("status").getAsString().equals("error")) {
+        Object mode = stateUpdate.getValue(StateUpdate.MODE);
+        String status = read(RequestPriority.COMMAND,
+                () -> http.post("http://" + ip + "/api/circuit/irrigation?apiKey=" + username + "&mode=" + mode
+                        + "&circuitId=" + circuit.getId(), "", CubeResponseDecoder::readStatus));
+        if (STATUS_ERROR.equals(status)) {
             throw new IrrigationException("Irrigation mode could not turned on or off"); // NEU
         }
 
@@ -197,20 +533,245 @@ public class Cube {
 
     public void setWinter(Circuit circuit, StateUpdate stateUpdate) throws IOException, ApiException {
         requireAuthentication();
-        String winter = (String) (stateUpdate.commands.get(0).value);
-        Result result = http.post("http://" + ip + "/api/circuit/winter?apiKey=" + username + "&winter=" + winter
-                + "&circuitId=" + circuit.getId(), "");
-        if (parser.parse(result.getBody()).getAsJsonObject().get("status").getAsString().equals("error")) {
+        Object winter = stateUpdate.getValue(StateUpdate.WINTER);
+        String status = read(RequestPriority.COMMAND,
+                () -> http.post("http://" + ip + "/api/circuit/winter?apiKey=" + username + "&winter=" + winter
+                        + "&circuitId=" + circuit.getId(), "", CubeResponseDecoder::readStatus));
+        if (STATUS_ERROR.equals(status)) {
             throw new ApiException("Wintermode couldnt been set");
         }
 
     }
 
-    private <T> T safeFromJson(String json, Class<T> classOfT) throws ApiException {
+    // Wie setIrrigation, ohne dass ein Thread auf den Cube wartet
+    public CompletableFuture<Void> setIrrigationAsync(Circuit circuit, StateUpdate stateUpdate) {
+        String apiKey = username;
+        if (apiKey == null) {
+            return failed(new IllegalStateException("Linking is required before interacting with the MIYOCube"));
+        }
+        Object mode = stateUpdate.getValue(StateUpdate.MODE);
+        return guardedAsync(() -> {
+            CompletableFuture<String> request = readAsync(RequestPriority.COMMAND,
+                    () -> getAsyncHttp().post("http://" + ip + "/api/circuit/irrigation?apiKey=" + apiKey + "&mode="
+                            + mode + "&circuitId=" + circuit.getId(), "", CubeResponseDecoder::readStatus));
+            return cancelling(request.thenAccept(status -> {
+                if (STATUS_ERROR.equals(status)) {
+                    throw new CompletionException(
+                            new IrrigationException("Irrigation mode could not turned on or off"));
+                }
+            }), request);
+        });
+    }
+
+    public CompletableFuture<Void> setWinterAsync(Circuit circuit, StateUpdate stateUpdate) {
+        String apiKey = username;
+        if (apiKey == null) {
+            return failed(new IllegalStateException("Linking is required before interacting with the MIYOCube"));
+        }
+        Object winter = stateUpdate.getValue(StateUpdate.WINTER);
+        return guardedAsync(() -> {
+            CompletableFuture<String> request = readAsync(RequestPriority.COMMAND,
+                    () -> getAsyncHttp().post("http://" + ip + "/api/circuit/winter?apiKey=" + apiKey + "&winter="
+                            + winter + "&circuitId=" + circuit.getId(), "", CubeResponseDecoder::readStatus));
+            return cancelling(request.thenAccept(status -> {
+                if (STATUS_ERROR.equals(status)) {
+                    throw new CompletionException(new ApiException("Wintermode couldnt been set"));
+                }
+            }), request);
+        });
+    }
+
+    private synchronized AsyncHttpClient getAsyncHttp() {
+        if (closed) {
+            throw new CompletionException(new IOException("MIYOCube closed"));
+        }
+        AsyncHttpClient client = asyncHttp;
+        if (client == null) {
+            try {
+                client = new AsyncHttpClient();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            client.setLatencyEstimator(latency);
+            Executor executor = responseExecutor;
+            if (executor != null) {
+                client.setExecutor(executor);
+            }
+            asyncHttp = client;
+        }
+        return client;
+    }
+
+    private <T> CompletableFuture<T> readAsync(RequestPriority priority, Supplier<CompletableFuture<T>> request) {
+        return readAsync(priority, request, false);
+    }
+
+    // Wie read: wartet ohne Thread im RequestScheduler und meldet fehlerhaftes JSON als ApiException. Wird das
+    // Ergebnis abgebrochen, verfällt der Platz in der Warteschlange bzw. der laufende Request wird abgebrochen.
+    // Requests einer Abfrage aller Circuits (sweep) werden angehoben, wenn ein Aufrufer mit höherer Priorität auf
+    // die Abfrage wartet
+    private <T> CompletableFuture<T> readAsync(RequestPriority priority, Supplier<CompletableFuture<T>> request,
+            boolean sweep) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        CompletableFuture<RequestPriority> slot = requestScheduler.acquireAsync(priority);
+        if (sweep) {
+            sweepSlots.add(slot);
+            slot.whenComplete((granted, rejected) -> sweepSlots.remove(slot));
+            // Die Abfrage kann angehoben worden sein, bevor der Platz eingetragen war
+            requestScheduler.raise(slot, inFlightPriority.get());
+        }
+        cancelling(result, slot);
+        slot.whenComplete((granted, rejected) -> {
+            if (rejected != null) {
+                result.completeExceptionally(unwrap(rejected));
+                return;
+            }
+            CompletableFuture<T> response;
+            try {
+                if (result.isDone()) {
+                    // Abgebrochen, während der Platz vergeben wurde
+                    requestScheduler.release(granted);
+                    return;
+                }
+                response = request.get();
+            } catch (RuntimeException e) {
+                requestScheduler.release(granted);
+                result.completeExceptionally(unwrap(e));
+                return;
+            }
+            cancelling(result, response);
+            response.whenComplete((value, error) -> {
+                requestScheduler.release(granted);
+                if (error == null) {
+                    result.complete(value);
+                } else {
+                    Throwable cause = unwrap(error);
+                    result.completeExceptionally(cause instanceof JsonParseException
+                            ? new ApiException("API returned unexpected result: " + cause.getMessage())
+                            : cause);
+                }
+            });
+        });
+        return result;
+    }
+
+    // CompletableFuture gibt einen Abbruch nicht an die Stufe weiter, von der es abhängt; das übernimmt diese Methode
+    private static <T> CompletableFuture<T> cancelling(CompletableFuture<T> dependent, CompletableFuture<?> source) {
+        dependent.whenComplete((value, error) -> {
+            if (dependent.isCancelled()) {
+                source.cancel(false);
+            }
+        });
+        return dependent;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    private interface Request<T> {
+        T execute() throws IOException;
+    }
+
+    private interface Operation<T> {
+        T execute() throws IOException, ApiException;
+    }
+
+    // Führt die Operation aus, wenn der ConnectionBreaker sie zulässt, und meldet ihm, ob der Cube geantwortet hat.
+    // Eine Operation zählt als ein Versuch, egal wie viele Requests sie stellt
+    private <T> T guarded(Operation<T> operation) throws IOException, ApiException {
+        if (!breaker.tryAcquire()) {
+            throw unavailable();
+        }
+        Throwable error = null;
+        try {
+            return operation.execute();
+        } catch (IOException | ApiException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            recordOutcome(error);
+        }
+    }
+
+    // Wie guarded, für eine asynchrone Operation wie eine ganze Abfrage aller Circuits mit ihren Sensoren
+    private <T> CompletableFuture<T> guardedAsync(Supplier<CompletableFuture<T>> operation) {
+        if (!breaker.tryAcquire()) {
+            return failed(unavailable());
+        }
+        CompletableFuture<T> result;
         try {
-            return gson.fromJson(json, classOfT);
+            result = operation.get();
+        } catch (RuntimeException e) {
+            recordOutcome(unwrap(e));
+            return failed(unwrap(e));
+        }
+        result.whenComplete((value, error) -> recordOutcome(error != null ? unwrap(error) : null));
+        return result;
+    }
+
+    // Eine Fehlermeldung der API oder ein HTTP Fehlercode ist auch eine Antwort; nach close() abgebrochene Requests
+    // zählen nicht
+    private void recordOutcome(@Nullable Throwable error) {
+        if (error == null || error instanceof ApiException || error instanceof HttpStatusException) {
+            breaker.recordSuccess();
+        } else if (closed || error instanceof CancellationException) {
+            breaker.recordAborted();
+        } else {
+            breaker.recordFailure();
+        }
+    }
+
+    private CubeUnavailableException unavailable() {
+        return new CubeUnavailableException(
+                "MIYOCube " + ip + " not reachable, next attempt in " + breaker.getRetryDelay() + " ms");
+    }
+
+    private <T> T read(RequestPriority priority, Request<T> request) throws IOException, ApiException {
+        return guarded(() -> send(priority, request));
+    }
+
+    // Fehlerhaftes JSON wird als ApiException gemeldet, Verbindungsfehler bleiben IOExceptions. Der Request wartet
+    // vorher im RequestScheduler, bis er nach seiner Priorität an der Reihe ist
+    private <T> T send(RequestPriority priority, Request<T> request) throws IOException, ApiException {
+        requestScheduler.acquire(priority);
+        try {
+            return request.execute();
         } catch (JsonParseException e) {
             throw new ApiException("API returned unexpected result: " + e.getMessage());
+        } finally {
+            requestScheduler.release(priority);
+        }
+    }
+
+    private static class Probe {
+        private final @Nullable String apiKey;
+        private final ProbeResult result;
+        private final long probedAt;
+
+        private Probe(@Nullable String apiKey, ProbeResult result, long probedAt) {
+            this.apiKey = apiKey;
+            this.result = result;
+            this.probedAt = probedAt;
+        }
+    }
+
+    // Ergebnis einer abgeschlossenen Abfrage aller Circuits
+    private static class Sweep {
+        private final String apiKey;
+        private final List<Circuit> circuits;
+        private final long completedAt;
+
+        private Sweep(String apiKey, List<Circuit> circuits, long completedAt) {
+            this.apiKey = apiKey;
+            this.circuits = circuits;
+            this.completedAt = completedAt;
         }
     }
 
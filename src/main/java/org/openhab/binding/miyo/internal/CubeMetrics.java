@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+
+/**
+ *
+ * {@link CubeMetrics} sammelt Kennzahlen eines Cubes, die der {@link org.openhab.binding.miyo.handler.CubeHandler}
+ * als Properties der Bridge anzeigt
+ *
+ */
+public class CubeMetrics {
+    public static final String PROPERTY_COMMANDS_CONFIRMED = "commandsConfirmed";
+    public static final String PROPERTY_COMMANDS_ROLLED_BACK = "commandsRolledBack";
+    public static final String PROPERTY_CONFIRMATION_LATENCY_LAST = "confirmationLatencyLast";
+    public static final String PROPERTY_CONFIRMATION_LATENCY_AVG = "confirmationLatencyAvg";
+    public static final String PROPERTY_CONFIRMATION_LATENCY_MAX = "confirmationLatencyMax";
+    public static final String PROPERTY_IO_THREADS_ACTIVE = "ioThreadsActive";
+    public static final String PROPERTY_IO_THREADS_PEAK = "ioThreadsPeak";
+    public static final String PROPERTY_IO_THREADS_MAX = "ioThreadsMax";
+    public static final String PROPERTY_IO_QUEUED = "ioQueued";
+    public static final String PROPERTY_IO_REJECTED = "ioRejected";
+    public static final String PROPERTY_REQUEST_TIMEOUTS = "requestTimeouts";
+    public static final String PROPERTY_BREAKER_STATE = "breakerState";
+    public static final String PROPERTY_BREAKER_TRIPS = "breakerTrips";
+    public static final String PROPERTY_BREAKER_NEXT_PROBE = "breakerNextProbe";
+    public static final String PROPERTY_EVENTS_DISPATCHED = "eventsDispatched";
+    public static final String PROPERTY_EVENTS_COALESCED = "eventsCoalesced";
+    public static final String PROPERTY_EVENTS_DROPPED = "eventsDropped";
+    public static final String PROPERTY_EVENTS_QUEUED = "eventsQueued";
+    public static final String PROPERTY_EVENTS_QUEUED_PEAK = "eventsQueuedPeak";
+    public static final String PROPERTY_JOURNAL_DROPPED = "journalDropped";
+    private static final String PROPERTY_QUEUE_WAIT = "queueWait";
+    private static final String PROPERTY_LATENCY = "latency";
+    private static final String PROPERTY_TIMEOUT = "timeout";
+
+    private long commandsConfirmed;
+    private long commandsRolledBack;
+    private long confirmationLatencyLast;
+    private long confirmationLatencyTotal;
+    private long confirmationLatencyMax;
+    private final long[] queueWaitTotal = new long[RequestPriority.values().length];
+    private final long[] queueWaitMax = new long[RequestPriority.values().length];
+    private final long[] queueWaitCount = new long[RequestPriority.values().length];
+    private int ioCapacity;
+    private int ioActive;
+    private int ioPeak;
+    private int ioQueued;
+    private long ioRejected;
+    private long requestTimeouts;
+    // Pro Endpunkt die geschätzte Antwortzeit und der daraus abgeleitete Timeout, in ms
+    private final Map<String, long[]> endpointLatencies = new TreeMap<>();
+    private ConnectionBreaker.State breakerState = ConnectionBreaker.State.CLOSED;
+    private long breakerTrips;
+    private long breakerRetryAt;
+    private long eventsDispatched;
+    private long eventsCoalesced;
+    private long eventsDropped;
+    private int eventsQueued;
+    private int eventsQueuedPeak;
+    private long journalDropped;
+
+    // Zeit vom Befehl bis der Cube den erwarteten Zustand meldet, in ms
+    public synchronized void recordConfirmation(long latency) {
+        commandsConfirmed++;
+        confirmationLatencyLast = latency;
+        confirmationLatencyTotal += latency;
+        confirmationLatencyMax = Math.max(confirmationLatencyMax, latency);
+    }
+
+    // Der Cube hat den erwarteten Zustand bis zur Deadline nicht gemeldet
+    public synchronized void recordRollback() {
+        commandsRolledBack++;
+    }
+
+    // Wartezeit eines Requests im RequestScheduler, in ms
+    public synchronized void recordQueueWait(RequestPriority priority, long wait) {
+        int i = priority.ordinal();
+        queueWaitCount[i]++;
+        queueWaitTotal[i] += wait;
+        queueWaitMax[i] = Math.max(queueWaitMax[i], wait);
+    }
+
+    // Anzahl der Threads des I/O Executors eines Cubes
+    public synchronized void setIoCapacity(int capacity) {
+        ioCapacity = capacity;
+    }
+
+    // Belegte Threads und wartende Aufgaben im I/O Executor, bei jedem Start und Ende einer Aufgabe
+    public synchronized void recordIoOccupancy(int active, int queued) {
+        ioActive = active;
+        ioQueued = queued;
+        ioPeak = Math.max(ioPeak, active);
+    }
+
+    // Eine Aufgabe wurde abgelehnt, weil alle Threads belegt und die Queue voll war
+    public synchronized void recordIoRejected() {
+        ioRejected++;
+    }
+
+    // Neue Schätzung des LatencyEstimators nach einer Antwort bzw. einem Timeout
+    public synchronized void recordEndpointLatency(String endpoint, long average, long timeout, boolean timedOut) {
+        endpointLatencies.put(endpoint, new long[] { average, timeout });
+        if (timedOut) {
+            requestTimeouts++;
+        }
+    }
+
+    // Neuer Zustand des ConnectionBreakers; tripped, wenn er aus CLOSED geöffnet wurde. retryAt ist der Zeitpunkt der
+    // nächsten Probe, 0 wenn keine ansteht
+    public synchronized void recordBreakerState(ConnectionBreaker.State state, boolean tripped, long retryAt) {
+        breakerState = state;
+        breakerRetryAt = retryAt;
+        if (tripped) {
+            breakerTrips++;
+        }
+    }
+
+    // Ein Event wurde einem Listener zugestellt
+    public synchronized void recordEventDispatched() {
+        eventsDispatched++;
+    }
+
+    // Ein Event wurde mit einem noch wartenden Event desselben Circuits zusammengefasst
+    public synchronized void recordEventCoalesced() {
+        eventsCoalesced++;
+    }
+
+    // Events wurden verworfen, weil die Queue eines Listeners voll war oder der Dispatcher nicht läuft
+    public synchronized void recordEventsDropped(int count) {
+        eventsDropped += count;
+    }
+
+    // Noch nicht zugestellte Events aller Listener
+    public synchronized void recordEventQueueDepth(int queued) {
+        eventsQueued = queued;
+        eventsQueuedPeak = Math.max(eventsQueuedPeak, queued);
+    }
+
+    // Updates, die das Journal seit dem Öffnen verworfen hat, weil die Queue seines Writers voll war
+    public synchronized void recordJournalDropped(long dropped) {
+        journalDropped = dropped;
+    }
+
+    public synchronized ConnectionBreaker.State getBreakerState() {
+        return breakerState;
+    }
+
+    public synchronized long getBreakerTrips() {
+        return breakerTrips;
+    }
+
+    public synchronized long getRequestTimeouts() {
+        return requestTimeouts;
+    }
+
+    public synchronized int getIoActive() {
+        return ioActive;
+    }
+
+    public synchronized long getIoRejected() {
+        return ioRejected;
+    }
+
+    public synchronized long getAverageQueueWait(RequestPriority priority) {
+        int i = priority.ordinal();
+        return queueWaitCount[i] == 0 ? 0 : queueWaitTotal[i] / queueWaitCount[i];
+    }
+
+    public synchronized long getCommandsConfirmed() {
+        return commandsConfirmed;
+    }
+
+    public synchronized long getCommandsRolledBack() {
+        return commandsRolledBack;
+    }
+
+    public synchronized long getEventsDispatched() {
+        return eventsDispatched;
+    }
+
+    public synchronized long getEventsCoalesced() {
+        return eventsCoalesced;
+    }
+
+    public synchronized long getEventsDropped() {
+        return eventsDropped;
+    }
+
+    public synchronized int getEventsQueued() {
+        return eventsQueued;
+    }
+
+    public synchronized long getAverageConfirmationLatency() {
+        return commandsConfirmed == 0 ? 0 : confirmationLatencyTotal / commandsConfirmed;
+    }
+
+    public synchronized Map<String, String> toProperties() {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put(PROPERTY_COMMANDS_CONFIRMED, Long.toString(commandsConfirmed));
+        properties.put(PROPERTY_COMMANDS_ROLLED_BACK, Long.toString(commandsRolledBack));
+        properties.put(PROPERTY_CONFIRMATION_LATENCY_LAST, confirmationLatencyLast + " ms");
+        properties.put(PROPERTY_CONFIRMATION_LATENCY_AVG, getAverageConfirmationLatency() + " ms");
+        properties.put(PROPERTY_CONFIRMATION_LATENCY_MAX, confirmationLatencyMax + " ms");
+        properties.put(PROPERTY_IO_THREADS_ACTIVE, Integer.toString(ioActive));
+        properties.put(PROPERTY_IO_THREADS_PEAK, Integer.toString(ioPeak));
+        properties.put(PROPERTY_IO_THREADS_MAX, Integer.toString(ioCapacity));
+        properties.put(PROPERTY_IO_QUEUED, Integer.toString(ioQueued));
+        properties.put(PROPERTY_IO_REJECTED, Long.toString(ioRejected));
+        properties.put(PROPERTY_REQUEST_TIMEOUTS, Long.toString(requestTimeouts));
+        // z.B. half-open
+        properties.put(PROPERTY_BREAKER_STATE, breakerState.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+        properties.put(PROPERTY_BREAKER_TRIPS, Long.toString(breakerTrips));
+        properties.put(PROPERTY_BREAKER_NEXT_PROBE, breakerRetryAt > 0 ? new DateTime(breakerRetryAt).toString() : "-");
+        properties.put(PROPERTY_EVENTS_DISPATCHED, Long.toString(eventsDispatched));
+        properties.put(PROPERTY_EVENTS_COALESCED, Long.toString(eventsCoalesced));
+        properties.put(PROPERTY_EVENTS_DROPPED, Long.toString(eventsDropped));
+        properties.put(PROPERTY_EVENTS_QUEUED, Integer.toString(eventsQueued));
+        properties.put(PROPERTY_EVENTS_QUEUED_PEAK, Integer.toString(eventsQueuedPeak));
+        properties.put(PROPERTY_JOURNAL_DROPPED, Long.toString(journalDropped));
+        // z.B. latencyCircuitAll und timeoutCircuitAll für /api/circuit/all
+        for (Map.Entry<String, long[]> endpoint : endpointLatencies.entrySet()) {
+            String name = getEndpointName(endpoint.getKey());
+            properties.put(PROPERTY_LATENCY + name, endpoint.getValue()[0] + " ms");
+            properties.put(PROPERTY_TIMEOUT + name, endpoint.getValue()[1] + " ms");
+        }
+        // z.B. queueWaitCommandAvg
+        for (RequestPriority priority : RequestPriority.values()) {
+            String name = PROPERTY_QUEUE_WAIT + priority.name().charAt(0)
+                    + priority.name().substring(1).toLowerCase(Locale.ROOT);
+            properties.put(name + "Avg", getAverageQueueWait(priority) + " ms");
+            properties.put(name + "Max", queueWaitMax[priority.ordinal()] + " ms");
+        }
+        return properties;
+    }
+
+    private static String getEndpointName(String endpoint) {
+        StringBuilder name = new StringBuilder();
+        for (String segment : endpoint.split("/")) {
+            if (!segment.isEmpty() && !segment.equals("api")) {
+                name.append(Character.toUpperCase(segment.charAt(0))).append(segment.substring(1));
+            }
+        }
+        return name.toString();
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ *
+ * {@link CubeResponseDecoder} liest die Antworten des Cubes in einem Durchlauf direkt aus dem Http-Body, ohne
+ * Zwischenstrings oder JSON-Bäume
+ *
+ * Fehlerhaftes JSON wird als {@link JsonParseException} gemeldet, damit es nicht mit Verbindungsfehlern
+ * (IOException) verwechselt wird.
+ *
+ */
+class CubeResponseDecoder {
+    static final String STATUS_ERROR = "error";
+
+    private CubeResponseDecoder() {
+    }
+
+    static class CircuitsResponse {
+        String status;
+        final List<Circuit> circuits = new ArrayList<>();
+    }
+
+    static class SensorResponse {
+        String status;
+        final SensorStatus sensor = new SensorStatus();
+    }
+
+    // Antwort von /api/circuit/all: {"status":..., "params":{"circuits":{"{id}":{...}, ...}}}
+    static CircuitsResponse readCircuits(InputStream body) throws IOException {
+        CircuitsResponse response = new CircuitsResponse();
+        // Reader wird nicht geschlossen, die Verbindung gehört dem HttpClient
+        JsonReader reader = open(body);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("status")) {
+                    response.status = nextString(reader);
+                } else if (name.equals("params") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals("circuits") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                reader.nextName();
+                                response.circuits.add(readCircuit(reader));
+                            }
+                            reader.endObject();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException(e.getMessage(), e);
+        }
+        return response;
+    }
+
+    // Antwort von /api/device/status: {"status":..., "params":{"device":{"stateTypes":{...}}}}
+    static SensorResponse readSensorStatus(InputStream body) throws IOException {
+        SensorResponse response = new SensorResponse();
+        // Reader wird nicht geschlossen, die Verbindung gehört dem HttpClient
+        JsonReader reader = open(body);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("status")) {
+                    response.status = nextString(reader);
+                } else if (name.equals("params") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals("device") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            readDevice(reader, response.sensor);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw new JsonParseException(e.getMessage(), e);
+        }
+        return response;
+    }
+
+    // Antworten, bei denen nur der Status interessiert (z.B. Bewässerung starten)
+    static String readStatus(InputStream body) throws IOException {
+        String status = null;
+        // Reader wird nicht geschlossen, die Verbindung gehört dem HttpClient
+        JsonReader reader = open(body);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("status")) {
+                    status = nextString(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException e) {
+            throw new JsonParseException(e.getMessage(), e);
+        }
+        return status;
+    }
+
+    private static JsonReader open(InputStream body) {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static Circuit readCircuit(JsonReader reader) throws IOException {
+        Circuit circuit = new Circuit();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("id")) {
+                circuit.setId(nextString(reader));
+            } else if (name.equals("name")) {
+                circuit.setName(nextString(reader));
+            } else if (name.equals("sensor")) {
+                circuit.setSensor(nextString(reader));
+            } else if (name.equals("params") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                circuit.setState(readState(reader));
+            } else if (name.equals("stateTypes") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    readCircuitStateType(reader, circuit);
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return circuit;
+    }
+
+    // Bordertop, Borderbottom und considerMower
+    private static State readState(JsonReader reader) throws IOException {
+        State state = new State();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("borderBottom")) {
+                state.setBorderBottom(nextString(reader));
+            } else if (name.equals("borderTop")) {
+                state.setBorderTop(nextString(reader));
+            } else if (name.equals("considerMower")) {
+                state.setConsiderMower(Boolean.parseBoolean(nextString(reader)));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return state;
+    }
+
+    // irrigation, winterMode, irrigationNextStart bzw. End und externBlock
+    private static void readCircuitStateType(JsonReader reader, Circuit circuit) throws IOException {
+        String type = null;
+        String value = null;
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("type")) {
+                type = nextString(reader);
+            } else if (name.equals("value")) {
+                value = nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (type == null || value == null) {
+            return;
+        }
+        if (type.equals("irrigation")) {
+            circuit.setIrrigation(Boolean.parseBoolean(value));
+        } else if (type.equals("winterMode")) {
+            circuit.setWintermode(Boolean.parseBoolean(value));
+        } else if (type.equals("irrigationNextStart")) {
+            circuit.setIrrigationStart(new DateTime(parseLong(value) * 1000));
+        } else if (type.equals("irrigationNextEnd")) {
+            circuit.setIrrigationEnd(new DateTime(parseLong(value) * 1000));
+        } else if (type.equals("externBlock")) {
+            circuit.setExternBlock(Boolean.parseBoolean(value));
+        }
+    }
+
+    private static void readDevice(JsonReader reader, SensorStatus sensor) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("stateTypes") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    readSensorStateType(reader, sensor);
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    // temperature, moisture und brightness
+    private static void readSensorStateType(JsonReader reader, SensorStatus sensor) throws IOException {
+        String type = null;
+        String value = null;
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("type")) {
+                type = nextString(reader);
+            } else if (name.equals("value")) {
+                value = nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (type == null || value == null) {
+            return;
+        }
+        if (type.equals("temperature")) {
+            sensor.temperature = Float.parseFloat(value);
+        } else if (type.equals("moisture")) {
+            sensor.moisture = Float.parseFloat(value);
+        } else if (type.equals("brightness")) {
+            sensor.brightness = Float.parseFloat(value);
+        }
+    }
+
+    // Liest Strings, Zahlen und Booleans als String; null bei JSON null, andere Werte werden übersprungen
+    private static String nextString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return reader.nextBoolean() ? "true" : "false";
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return (long) Double.parseDouble(value);
+        }
+    }
+}
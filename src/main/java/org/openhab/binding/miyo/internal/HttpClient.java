@@ -9,28 +9,61 @@
 
 package org.openhab.binding.miyo.internal;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
+import org.openhab.binding.miyo.internal.exceptions.HttpStatusException;
 
 /**
  *
  * {@link HttpClient} für Http Requests an den Cube
  *
- *
+ * Die Requests laufen über HTTP/1.1 Keep-Alive Verbindungen aus einem {@link ConnectionPool}, so dass ein Poll-Zyklus
+ * nicht für jeden Request einen neuen TCP-Handshake mit dem Cube braucht. Der Timeout eines Requests wird pro
+ * Endpunkt vom {@link LatencyEstimator} aus den bisherigen Antwortzeiten abgeleitet.
  *
  */
 
 public class HttpClient {
-    private int timeout = 1000;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    private static final long DEFAULT_KEEP_ALIVE = 30000;
+
+    private LatencyEstimator latency = new LatencyEstimator(1000, 1000);
+    private final ConnectionPool pool;
+
+    public HttpClient() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE);
+    }
 
+    public HttpClient(int maxConnectionsPerHost, long keepAliveMillis) {
+        this.pool = new ConnectionPool(maxConnectionsPerHost, keepAliveMillis);
+    }
+
+    // Fester Timeout für alle Endpunkte
     public void setTimeout(int timeout) {
-        this.timeout = timeout;
+        latency.setBounds(timeout, timeout);
+    }
+
+    // Der Timeout folgt den gemessenen Antwortzeiten, bleibt aber zwischen minTimeout und maxTimeout
+    public void setTimeout(int minTimeout, int maxTimeout) {
+        latency.setBounds(minTimeout, maxTimeout);
+    }
+
+    // Erlaubt es, die Schätzungen mit einem AsyncHttpClient zum selben Cube zu teilen
+    void setLatencyEstimator(LatencyEstimator latency) {
+        this.latency = latency;
     }
 
     public Result get(String address) throws IOException {
@@ -49,28 +82,255 @@ public class HttpClient {
         return doNetwork(address, "DELETE", "");
     }
 
+    // Wie get bzw. post, der Body wird aber direkt aus der Verbindung an den BodyReader übergeben
+    public <T> T get(String address, BodyReader<T> reader) throws IOException {
+        return doNetwork(address, "GET", "", reader);
+    }
+
+    public <T> T post(String address, String body, BodyReader<T> reader) throws IOException {
+        return doNetwork(address, "POST", body, reader);
+    }
+
+    // Wie post mit BodyReader, aber mit festem Timeout in ms statt der Schätzung für den Endpunkt, z.B. für eine
+    // Probe. Antwortzeit und Timeout gehen nicht in die Schätzung ein
+    public <T> T post(String address, String body, int timeout, BodyReader<T> reader) throws IOException {
+        return doNetwork(address, "POST", body, timeout, reader);
+    }
+
+    // Baut nur eine TCP-Verbindung zum Host der Adresse auf und schließt sie wieder, z.B. um zu prüfen ob der Cube
+    // erreichbar ist
+    public void connect(String address, int connectTimeout) throws IOException {
+        URL url = new URL(address);
+        Socket socket = pool.connect(url.getHost(), url.getPort() != -1 ? url.getPort() : url.getDefaultPort(),
+                connectTimeout);
+        pool.disconnect(socket);
+    }
+
+    // Schließt alle Verbindungen zum Cube. Laufende Requests brechen sofort mit einer IOException ab, statt bis zum
+    // Timeout zu blockieren; danach nimmt der Client keine Requests mehr an
+    public void close() {
+        pool.close();
+    }
+
     protected Result doNetwork(String address, String requestMethod, String body) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection) new URL(address).openConnection();
+        return doNetwork(address, requestMethod, body, null);
+    }
+
+    protected <T> T doNetwork(String address, String requestMethod, String body, BodyReader<T> reader)
+            throws IOException {
+        return doNetwork(address, requestMethod, body, 0, reader);
+    }
+
+    // Mit fixedTimeout 0 gilt der geschätzte Timeout des Endpunkts
+    private <T> T doNetwork(String address, String requestMethod, String body, int fixedTimeout,
+            BodyReader<T> reader) throws IOException {
+        URL url = new URL(address);
+        if (!"http".equals(url.getProtocol())) {
+            throw new IOException("Unsupported protocol: " + url.getProtocol());
+        }
+        byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        String endpoint = url.getPath();
+        boolean estimated = fixedTimeout <= 0;
+        int timeout = estimated ? latency.getTimeout(endpoint) : fixedTimeout;
+        try {
+            try {
+                return exchange(acquire(url, timeout, true), url, requestMethod, content, timeout, estimated,
+                        reader);
+            } catch (StaleConnectionException e) {
+                // Der Cube hat die Keep-Alive Verbindung inzwischen geschlossen, einmal mit neuer Verbindung versuchen
+                return exchange(acquire(url, timeout, false), url, requestMethod, content, timeout, estimated,
+                        reader);
+            }
+        } catch (SocketTimeoutException e) {
+            if (estimated) {
+                latency.recordTimeout(endpoint);
+            }
+            throw e;
+        }
+    }
+
+    private ConnectionPool.Connection acquire(URL url, int timeout, boolean reuse) throws IOException {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return pool.acquire(url.getHost(), port, timeout, reuse);
+    }
+
+    // Ohne BodyReader wird der Body als String in einem Result zurückgegeben
+    @SuppressWarnings("unchecked")
+    private <T> T exchange(ConnectionPool.Connection connection, URL url, String requestMethod, byte[] content,
+            int timeout, boolean estimated, BodyReader<T> reader) throws IOException {
+        boolean reusable = false;
+        long keepAliveHint = 0;
+        long start = System.nanoTime();
         try {
-            connection.setRequestMethod(requestMethod);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setConnectTimeout(timeout);
-            connection.setReadTimeout(timeout);
-
-            if (body != null && !body.equals("")) {
-                connection.setDoOutput(true);
-                OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream());
-                out.write(body);
-                out.close();
-            }
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            String output = IOUtils.toString(in, "UTF-8");
-            return new Result(output, connection.getResponseCode());
+            connection.setTimeout(timeout);
+            String statusLine;
+            try {
+                writeRequest(connection.getOutputStream(), url, requestMethod, content);
+                statusLine = readLine(connection.getInputStream());
+            } catch (IOException e) {
+                if (connection.isReused() && !(e instanceof SocketTimeoutException)) {
+                    throw new StaleConnectionException();
+                }
+                throw e;
+            }
+            if (statusLine == null) {
+                if (connection.isReused()) {
+                    throw new StaleConnectionException();
+                }
+                throw new EOFException("Connection closed by " + url.getHost() + " without response");
+            }
+
+            InputStream in = connection.getInputStream();
+            int responseCode = parseStatusCode(statusLine);
+            Map<String, String> headers = readHeaders(in);
+            // Zwischenantworten (100 Continue) überspringen
+            while (responseCode >= 100 && responseCode < 200) {
+                statusLine = readLine(in);
+                if (statusLine == null) {
+                    throw new EOFException("Connection closed by " + url.getHost() + " without response");
+                }
+                responseCode = parseStatusCode(statusLine);
+                headers = readHeaders(in);
+            }
+
+            String connectionHeader = headers.get("connection");
+            boolean keepAlive = statusLine.startsWith("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+            InputStream bodyStream;
+            boolean delimited = true;
+            String contentLength = headers.get("content-length");
+            if ("HEAD".equals(requestMethod) || responseCode == 204 || responseCode == 304) {
+                bodyStream = new FixedLengthInputStream(in, 0);
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                bodyStream = new ChunkedInputStream(in);
+            } else if (contentLength != null) {
+                bodyStream = new FixedLengthInputStream(in, Long.parseLong(contentLength.trim()));
+            } else {
+                // Ohne Längenangabe endet der Body erst mit dem Schließen der Verbindung
+                bodyStream = in;
+                delimited = false;
+            }
+
+            keepAliveHint = parseKeepAliveTimeout(headers.get("keep-alive"));
+            if (responseCode >= 400) {
+                IOUtils.skip(bodyStream, Long.MAX_VALUE);
+                reusable = keepAlive && delimited;
+                if (estimated) {
+                    recordLatency(url, start);
+                }
+                throw new HttpStatusException(
+                        "Server returned HTTP response code: " + responseCode + " for URL: " + url, responseCode);
+            }
+
+            T output;
+            if (reader == null) {
+                output = (T) new Result(IOUtils.toString(bodyStream, "UTF-8"), responseCode);
+            } else {
+                output = reader.read(bodyStream);
+                // Rest des Bodys verwerfen, damit die Verbindung wiederverwendet werden kann
+                IOUtils.skip(bodyStream, Long.MAX_VALUE);
+            }
+            reusable = keepAlive && delimited;
+            if (estimated) {
+                recordLatency(url, start);
+            }
+            return output;
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed HTTP response from " + url.getHost() + ": " + e.getMessage());
         } finally {
-            connection.disconnect();
+            pool.release(connection, reusable, keepAliveHint);
         }
     }
 
+    private void recordLatency(URL url, long start) {
+        latency.recordLatency(url.getPath(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void writeRequest(OutputStream out, URL url, String requestMethod, byte[] content) throws IOException {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder request = new StringBuilder(128 + path.length());
+        request.append(requestMethod).append(' ').append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            request.append(':').append(url.getPort());
+        }
+        request.append("\r\n");
+        request.append("Content-Type: application/json\r\n");
+        request.append("Accept: */*\r\n");
+        request.append("Connection: keep-alive\r\n");
+        if (content.length > 0 || !"GET".equals(requestMethod) && !"DELETE".equals(requestMethod)) {
+            request.append("Content-Length: ").append(content.length).append("\r\n");
+        }
+        request.append("\r\n");
+        out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(content);
+        out.flush();
+    }
+
+    static int parseStatusCode(String statusLine) throws IOException {
+        // z.B. "HTTP/1.1 200 OK"
+        if (!statusLine.startsWith("HTTP/") || statusLine.length() < 12) {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+        }
+        return Integer.parseInt(statusLine.substring(9, 12));
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed while reading HTTP headers");
+        }
+        return headers;
+    }
+
+    // Keep-Alive: timeout=5 -> 5000 ms, mit etwas Abstand damit wir die Verbindung nicht gleichzeitig mit dem Cube
+    // schließen
+    static long parseKeepAliveTimeout(String keepAlive) {
+        if (keepAlive == null) {
+            return 0;
+        }
+        for (String param : keepAlive.split(",")) {
+            String[] pair = param.trim().split("=");
+            if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("timeout")) {
+                try {
+                    long seconds = Long.parseLong(pair[1].trim());
+                    return seconds > 1 ? (seconds - 1) * 1000 : 500;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // Liest eine Zeile bis CRLF (bzw. LF), null wenn die Verbindung vorher geschlossen wurde
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+            }
+            line.write(c);
+        }
+        return line.size() == 0 ? null : line.toString("ISO-8859-1");
+    }
+
+    public interface BodyReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
     public static class Result {
         private final String body;
         private final int responseCode;
@@ -88,4 +348,109 @@ public class HttpClient {
             return responseCode;
         }
     }
+
+    // Signalisiert, dass eine wiederverwendete Verbindung vom Cube bereits geschlossen wurde
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Body mit Content-Length
+    private static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = in.read();
+            if (c == -1) {
+                throw new EOFException("Unexpected end of HTTP body");
+            }
+            remaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Unexpected end of HTTP body");
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    // Body mit Transfer-Encoding: chunked
+    private static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int c = in.read();
+            if (c == -1) {
+                throw new EOFException("Unexpected end of chunked HTTP body");
+            }
+            remaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("Unexpected end of chunked HTTP body");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof) {
+                return false;
+            }
+            if (remaining > 0) {
+                return true;
+            }
+            String line = readLine(in);
+            if (line != null && line.isEmpty()) {
+                // CRLF am Ende des vorherigen Chunks
+                line = readLine(in);
+            }
+            if (line == null) {
+                throw new EOFException("Unexpected end of chunked HTTP body");
+            }
+            int extension = line.indexOf(';');
+            remaining = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+            if (remaining == 0) {
+                // Trailer bis zur Leerzeile überspringen
+                readHeaders(in);
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+    }
 }
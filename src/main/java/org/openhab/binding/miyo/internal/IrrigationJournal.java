@@ -0,0 +1,403 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * {@link IrrigationJournal} schreibt die Zustandswechsel der Circuits (Bewässerung, Wintermodus, externBlock) in ein
+ * Journal aus memory-mapped Segmenten mit Einträgen fester Länge
+ *
+ * Geschrieben wird in einem eigenen Thread, der aufrufende Poll legt nur den Stand in eine Queue. Ein volles Segment
+ * wird durch ein neues ersetzt, die ältesten Segmente werden gelöscht. Pro Segment wird im Speicher festgehalten,
+ * welcher Zeitraum und welche Circuits darin vorkommen, so dass Abfragen nur die passenden Segmente lesen.
+ *
+ */
+public class IrrigationJournal {
+    private static final int MAGIC = 0x4d594a31; // "MYJ1"
+    private static final int VERSION = 1;
+    // Header: magic, version, Anzahl der Einträge, reserviert
+    private static final int HEADER_SIZE = 16;
+    // Eintrag: Zeit (long), Circuit (int), Feld (short), Wert (short)
+    private static final int RECORD_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+    private static final int DEFAULT_SEGMENT_RECORDS = 65536;
+    private static final int DEFAULT_MAX_SEGMENTS = 16;
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CIRCUITS_FILE = "circuits";
+
+    private static final CircuitField[] JOURNAL_FIELDS = { CircuitField.IRRIGATION, CircuitField.WINTERMODE,
+            CircuitField.EXTERN_BLOCK };
+
+    private final Logger logger = LoggerFactory.getLogger(IrrigationJournal.class);
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    // Circuit Ids werden in den Einträgen als Index in diese Liste gespeichert
+    private final List<String> circuitIds = new ArrayList<>();
+    private final Map<String, Integer> circuitSlots = new HashMap<>();
+
+    // Zuletzt geschriebene Werte pro Circuit als Bitmaske der JOURNAL_FIELDS
+    private final Map<String, Integer> lastValues = new HashMap<>();
+
+    private final ThreadPoolExecutor writer;
+    private final AtomicLong droppedUpdates = new AtomicLong();
+
+    public IrrigationJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public IrrigationJournal(Path directory, int segmentRecords, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        open();
+        writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "MIYO-journal-" + directory.getFileName());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Callback für {@link IrrigationJournal#replay}
+     */
+    public interface RecordVisitor {
+        void visit(long time, CircuitField field, boolean value);
+    }
+
+    // Übergibt den gepollten Stand an den Writer-Thread, geschrieben werden nur die Wechsel
+    public void update(Circuit circuit, long time) {
+        String circuitId = circuit.getOpenhabId();
+        int values = (circuit.getIrrigation() ? bit(CircuitField.IRRIGATION) : 0)
+                | (circuit.getWintermode() ? bit(CircuitField.WINTERMODE) : 0)
+                | (circuit.getExternBlock() ? bit(CircuitField.EXTERN_BLOCK) : 0);
+        try {
+            writer.execute(() -> writeTransitions(circuitId, values, time));
+        } catch (RejectedExecutionException e) {
+            droppedUpdates.incrementAndGet();
+            logger.debug("Journal queue is full, dropping update of circuit {}", circuitId);
+        }
+    }
+
+    public long getDroppedUpdates() {
+        return droppedUpdates.get();
+    }
+
+    // Liefert alle Einträge eines Circuits zwischen from und to in zeitlicher Reihenfolge
+    public synchronized void replay(String circuitId, long from, long to, RecordVisitor visitor) {
+        Integer slot = circuitSlots.get(circuitId);
+        if (slot == null) {
+            return;
+        }
+        for (Segment segment : segments) {
+            if (segment.count == 0 || segment.maxTime < from || segment.minTime > to
+                    || !segment.circuits.get(slot)) {
+                continue;
+            }
+            for (int i = 0; i < segment.count; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                long time = segment.buffer.getLong(offset);
+                if (time < from || time > to || segment.buffer.getInt(offset + 8) != slot) {
+                    continue;
+                }
+                CircuitField field = CircuitField.values()[segment.buffer.getShort(offset + 12)];
+                visitor.visit(time, field, segment.buffer.getShort(offset + 14) != 0);
+            }
+        }
+    }
+
+    // Liefert den letzten Wert des Felds vor before, null wenn das Journal keinen enthält
+    public synchronized Boolean getValueBefore(String circuitId, CircuitField field, long before) {
+        Integer slot = circuitSlots.get(circuitId);
+        if (slot == null) {
+            return null;
+        }
+        Iterator<Segment> it = segments.descendingIterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment.count == 0 || segment.minTime >= before || !segment.circuits.get(slot)) {
+                continue;
+            }
+            for (int i = segment.count - 1; i >= 0; i--) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                if (segment.buffer.getLong(offset) < before && segment.buffer.getInt(offset + 8) == slot
+                        && segment.buffer.getShort(offset + 12) == field.ordinal()) {
+                    return segment.buffer.getShort(offset + 14) != 0;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Anzahl und Dauer der Bewässerungen pro Tag, eine Bewässerung zählt zum Tag ihres Starts. Läuft zu Beginn des
+    // Zeitraums bereits eine Bewässerung, zählt sie ab from
+    public List<DailyStatistics> getDailyStatistics(String circuitId, long from, long to) {
+        TreeMap<LocalDate, DailyStatistics> days = new TreeMap<>();
+        long[] start = { Boolean.TRUE.equals(getValueBefore(circuitId, CircuitField.IRRIGATION, from)) ? from : -1 };
+        replay(circuitId, from, to, (time, field, value) -> {
+            if (field != CircuitField.IRRIGATION) {
+                return;
+            }
+            if (value) {
+                if (start[0] < 0) {
+                    start[0] = time;
+                }
+            } else if (start[0] >= 0) {
+                addIrrigation(days, start[0], time - start[0]);
+                start[0] = -1;
+            }
+        });
+        if (start[0] >= 0) {
+            // Läuft noch
+            addIrrigation(days, start[0], Math.min(to, System.currentTimeMillis()) - start[0]);
+        }
+        return new ArrayList<>(days.values());
+    }
+
+    // Der Writer-Thread arbeitet die Queue ab und schreibt danach die Segmente auf die Platte, ohne dass der
+    // Aufrufer darauf wartet. Ist die Queue voll, entfällt nur das force(), die Segmente sind memory-mapped
+    public void close() {
+        try {
+            writer.execute(this::force);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Journal queue is full, segments are not forced on close");
+        }
+        writer.shutdown();
+    }
+
+    // Wartet nach close(), bis der Writer-Thread fertig ist, z.B. bevor dasselbe Verzeichnis neu geöffnet wird
+    public boolean awaitClosed(long timeout, TimeUnit unit) throws InterruptedException {
+        return writer.awaitTermination(timeout, unit);
+    }
+
+    private synchronized void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private static void addIrrigation(TreeMap<LocalDate, DailyStatistics> days, long start, long duration) {
+        LocalDate day = new LocalDate(start);
+        DailyStatistics statistics = days.computeIfAbsent(day, DailyStatistics::new);
+        statistics.count++;
+        statistics.duration += duration;
+    }
+
+    private synchronized void writeTransitions(String circuitId, int values, long time) {
+        Integer last = lastValues.get(circuitId);
+        try {
+            for (CircuitField field : JOURNAL_FIELDS) {
+                int bit = bit(field);
+                if (last == null || (last & bit) != (values & bit)) {
+                    append(circuitId, field, (values & bit) != 0, time);
+                }
+            }
+            lastValues.put(circuitId, values);
+        } catch (IOException e) {
+            logger.warn("Could not write irrigation journal: {}", e.getMessage());
+        }
+    }
+
+    private void append(String circuitId, CircuitField field, boolean value, long time) throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.count >= segmentRecords) {
+            segment = rotate(segment);
+        }
+        int slot = getSlot(circuitId);
+        int offset = HEADER_SIZE + segment.count * RECORD_SIZE;
+        segment.buffer.putLong(offset, time);
+        segment.buffer.putInt(offset + 8, slot);
+        segment.buffer.putShort(offset + 12, (short) field.ordinal());
+        segment.buffer.putShort(offset + 14, (short) (value ? 1 : 0));
+        segment.count++;
+        // Die Anzahl wird erst nach dem Eintrag erhöht, ein abgebrochener Eintrag wird beim Öffnen ignoriert
+        segment.buffer.putInt(COUNT_OFFSET, segment.count);
+        segment.index(time, slot);
+    }
+
+    private Segment rotate(Segment full) throws IOException {
+        if (full != null) {
+            full.buffer.force();
+        }
+        long sequence = full != null ? full.sequence + 1 : 0;
+        Segment segment = openSegment(sequence);
+        segments.addLast(segment);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.removeFirst();
+            Files.deleteIfExists(oldest.path);
+        }
+        return segment;
+    }
+
+    private int getSlot(String circuitId) throws IOException {
+        Integer slot = circuitSlots.get(circuitId);
+        if (slot == null) {
+            Files.write(directory.resolve(CIRCUITS_FILE), (circuitId + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            slot = circuitIds.size();
+            circuitIds.add(circuitId);
+            circuitSlots.put(circuitId, slot);
+        }
+        return slot;
+    }
+
+    // Liest die Circuit Ids und alle Segmente ein und baut Index und letzte Werte neu auf
+    private void open() throws IOException {
+        Path circuitsFile = directory.resolve(CIRCUITS_FILE);
+        if (Files.exists(circuitsFile)) {
+            for (String circuitId : Files.readAllLines(circuitsFile, StandardCharsets.UTF_8)) {
+                if (!circuitId.isEmpty()) {
+                    circuitSlots.put(circuitId, circuitIds.size());
+                    circuitIds.add(circuitId);
+                }
+            }
+        }
+        TreeSet<Long> sequences = new TreeSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.debug("Ignoring unknown journal file {}", file);
+                }
+            }
+        }
+        for (long sequence : sequences) {
+            Segment segment = openSegment(sequence);
+            segments.addLast(segment);
+            for (int i = 0; i < segment.count; i++) {
+                int offset = HEADER_SIZE + i * RECORD_SIZE;
+                int slot = segment.buffer.getInt(offset + 8);
+                if (slot < 0 || slot >= circuitIds.size()) {
+                    continue;
+                }
+                segment.index(segment.buffer.getLong(offset), slot);
+                int bit = bit(CircuitField.values()[segment.buffer.getShort(offset + 12)]);
+                String circuitId = circuitIds.get(slot);
+                int values = lastValues.getOrDefault(circuitId, 0);
+                values = segment.buffer.getShort(offset + 14) != 0 ? values | bit : values & ~bit;
+                lastValues.put(circuitId, values);
+            }
+        }
+    }
+
+    private Segment openSegment(long sequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        MappedByteBuffer buffer;
+        // Das Mapping bleibt auch nach dem Schließen des Channels gültig
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) segmentRecords * RECORD_SIZE);
+        }
+        Segment segment = new Segment(path, sequence, buffer);
+        int magic = buffer.getInt(0);
+        if (magic == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(COUNT_OFFSET, 0);
+        } else if (magic != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Unknown journal format in " + path);
+        } else {
+            segment.count = Math.min(buffer.getInt(COUNT_OFFSET), segmentRecords);
+        }
+        return segment;
+    }
+
+    private static int bit(CircuitField field) {
+        return 1 << field.ordinal();
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+        private int count;
+        // Index: Zeitraum und enthaltene Circuits
+        private long minTime = Long.MAX_VALUE;
+        private long maxTime = Long.MIN_VALUE;
+        private final BitSet circuits = new BitSet();
+
+        private Segment(Path path, long sequence, MappedByteBuffer buffer) {
+            this.path = path;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+        private void index(long time, int slot) {
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            circuits.set(slot);
+        }
+    }
+
+    /**
+     * Bewässerungen eines Circuits an einem Tag
+     */
+    public static class DailyStatistics {
+        private final LocalDate day;
+        private int count;
+        private long duration;
+
+        private DailyStatistics(LocalDate day) {
+            this.day = day;
+        }
+
+        public LocalDate getDay() {
+            return day;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        // Gesamtdauer in ms
+        public long getDuration() {
+            return duration;
+        }
+    }
+}
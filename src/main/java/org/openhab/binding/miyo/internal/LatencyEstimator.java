@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * {@link LatencyEstimator} schätzt die Antwortzeit eines Cubes pro Endpunkt und leitet daraus den Timeout der
+ * Requests ab
+ *
+ * Wie beim Retransmission Timeout von TCP (RFC 6298) werden ein gleitender Mittelwert und die mittlere Abweichung der
+ * gemessenen Zeiten geführt. Der Timeout ist Mittelwert plus vierfache Abweichung, begrenzt auf [min, max]; solange
+ * für einen Endpunkt noch keine Messung vorliegt, gilt max. Nach jedem Timeout verdoppelt sich der Wert bis zur
+ * nächsten Antwort, so dass ein langsamer, aber erreichbarer Cube nicht dauerhaft abgebrochen wird.
+ *
+ */
+class LatencyEstimator {
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+    // Untergrenze der Abweichung in ms, damit sehr gleichmäßige Antworten nicht zu einem zu knappen Timeout führen
+    private static final double GRANULARITY = 10;
+    private static final int MAX_BACKOFF = 6;
+
+    private final Map<String, Estimate> estimates = new HashMap<>();
+    private final CubeMetrics metrics;
+    private int minTimeout;
+    private int maxTimeout;
+
+    LatencyEstimator(int minTimeout, int maxTimeout) {
+        this(minTimeout, maxTimeout, new CubeMetrics());
+    }
+
+    LatencyEstimator(int minTimeout, int maxTimeout, CubeMetrics metrics) {
+        this.metrics = metrics;
+        setBounds(minTimeout, maxTimeout);
+    }
+
+    // Ist min größer als max, gilt max als fester Timeout
+    synchronized void setBounds(int minTimeout, int maxTimeout) {
+        this.maxTimeout = Math.max(1, maxTimeout);
+        this.minTimeout = Math.max(1, Math.min(minTimeout, this.maxTimeout));
+    }
+
+    // Timeout in ms für den nächsten Request an den Endpunkt (Pfad der URL)
+    synchronized int getTimeout(String endpoint) {
+        Estimate estimate = estimates.get(endpoint);
+        if (estimate == null || estimate.samples == 0) {
+            return maxTimeout;
+        }
+        double timeout = (estimate.average + Math.max(GRANULARITY, K * estimate.deviation)) * (1 << estimate.backoff);
+        return (int) Math.max(minTimeout, Math.min(maxTimeout, Math.ceil(timeout)));
+    }
+
+    // Dauer einer vollständigen Antwort in ms
+    synchronized void recordLatency(String endpoint, long latency) {
+        Estimate estimate = estimates.computeIfAbsent(endpoint, key -> new Estimate());
+        if (estimate.samples == 0) {
+            estimate.average = latency;
+            estimate.deviation = latency / 2.0;
+        } else {
+            estimate.deviation = (1 - BETA) * estimate.deviation + BETA * Math.abs(estimate.average - latency);
+            estimate.average = (1 - ALPHA) * estimate.average + ALPHA * latency;
+        }
+        estimate.samples++;
+        estimate.backoff = 0;
+        metrics.recordEndpointLatency(endpoint, Math.round(estimate.average), getTimeout(endpoint), false);
+    }
+
+    synchronized void recordTimeout(String endpoint) {
+        Estimate estimate = estimates.computeIfAbsent(endpoint, key -> new Estimate());
+        estimate.backoff = Math.min(MAX_BACKOFF, estimate.backoff + 1);
+        metrics.recordEndpointLatency(endpoint, Math.round(estimate.average), getTimeout(endpoint), true);
+    }
+
+    private static class Estimate {
+        private double average;
+        private double deviation;
+        private long samples;
+        private int backoff;
+    }
+}
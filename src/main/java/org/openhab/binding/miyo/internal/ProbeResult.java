@@ -0,0 +1,23 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+/**
+ *
+ * {@link ProbeResult} Ergebnis von {@link Cube#probe()}
+ *
+ */
+public enum ProbeResult {
+    // Cube erreichbar und API-Key gültig
+    OK,
+    // Cube erreichbar, aber kein oder ein ungültiger API-Key
+    UNAUTHORIZED,
+    // Keine Verbindung zum Cube
+    UNREACHABLE
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+/**
+ *
+ * {@link RequestPriority} Priorität eines Requests an den Cube, in absteigender Reihenfolge
+ *
+ */
+public enum RequestPriority {
+    // Befehle des Benutzers, z.B. Bewässerung starten
+    COMMAND,
+    // Gezieltes Nachlesen, z.B. nach einem Befehl oder zum Start einer Bewässerung
+    REFRESH,
+    // Regelmäßiges Polling im Hintergrund
+    POLL
+}
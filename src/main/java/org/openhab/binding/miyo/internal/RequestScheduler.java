@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * {@link RequestScheduler} vergibt die Requests an einen Cube nach {@link RequestPriority}, damit ein Befehl nicht
+ * hinter dem Polling warten muss
+ *
+ * Innerhalb einer Priorität gilt die Reihenfolge der Anfragen. Solange ein Befehl wartet oder läuft, werden keine
+ * Requests des Pollings gestartet, ein laufender Poll pausiert also zwischen den Sensorabfragen. Asynchrone Requests
+ * reihen sich in dieselbe Warteschlange ein, statt einen Thread warten zu lassen, und können dort nachträglich
+ * angehoben werden.
+ *
+ */
+class RequestScheduler {
+    private final int maxConcurrent;
+    private final CubeMetrics metrics;
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+    private final int[] active = new int[RequestPriority.values().length];
+    private int running;
+    private long sequence;
+    private boolean closed;
+
+    RequestScheduler(int maxConcurrent, CubeMetrics metrics) {
+        this.maxConcurrent = maxConcurrent;
+        this.metrics = metrics;
+    }
+
+    // Blockiert, bis der Request an der Reihe ist; danach muss release aufgerufen werden
+    void acquire(RequestPriority priority) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("MIYOCube closed");
+            }
+            Waiter waiter = new Waiter(priority, sequence++, null, System.nanoTime());
+            waiting.add(waiter);
+            try {
+                while (!canRun(waiter)) {
+                    wait();
+                    if (closed) {
+                        throw new IOException("MIYOCube closed");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the MIYOCube");
+            } finally {
+                waiting.remove(waiter);
+                // Der nächste Wartende kann jetzt evtl. ebenfalls starten
+                notifyAll();
+            }
+            start(waiter);
+        }
+        grant();
+    }
+
+    // Das Future wird mit der Priorität abgeschlossen, mit der der Request an der Reihe ist; mit dieser muss danach
+    // release aufgerufen werden. Wird es vorher abgebrochen, verfällt der Platz in der Warteschlange
+    CompletableFuture<RequestPriority> acquireAsync(RequestPriority priority) {
+        CompletableFuture<RequestPriority> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IOException("MIYOCube closed"));
+                return future;
+            }
+            waiting.add(new Waiter(priority, sequence++, future, System.nanoTime()));
+        }
+        grant();
+        return future;
+    }
+
+    // Hebt einen noch wartenden asynchronen Request auf priority an. Innerhalb der neuen Priorität zählt weiter der
+    // Zeitpunkt seiner Anfrage; läuft er bereits oder hat er schon eine höhere Priorität, ändert sich nichts
+    void raise(CompletableFuture<RequestPriority> future, RequestPriority priority) {
+        synchronized (this) {
+            Waiter found = null;
+            for (Waiter waiter : waiting) {
+                if (waiter.future == future) {
+                    found = waiter;
+                    break;
+                }
+            }
+            if (found == null || priority.compareTo(found.priority) >= 0) {
+                return;
+            }
+            waiting.remove(found);
+            waiting.add(new Waiter(priority, found.sequence, future, found.start));
+        }
+        grant();
+    }
+
+    void release(RequestPriority priority) {
+        synchronized (this) {
+            running--;
+            active[priority.ordinal()]--;
+            notifyAll();
+        }
+        grant();
+    }
+
+    // Alle Wartenden brechen mit einer IOException ab, neue Requests werden abgelehnt. Laufende Requests geben ihren
+    // Platz weiterhin mit release zurück
+    void close() {
+        List<Waiter> aborted;
+        synchronized (this) {
+            closed = true;
+            aborted = new ArrayList<>(waiting);
+            waiting.clear();
+            notifyAll();
+        }
+        for (Waiter waiter : aborted) {
+            if (waiter.future != null) {
+                waiter.future.completeExceptionally(new IOException("MIYOCube closed"));
+            }
+        }
+    }
+
+    // Startet die asynchronen Wartenden an der Spitze der Warteschlange. Die Futures werden außerhalb des Locks
+    // abgeschlossen, da daran hängende Callbacks gleich den nächsten Request stellen
+    private void grant() {
+        List<Waiter> granted = null;
+        synchronized (this) {
+            Waiter head;
+            while ((head = waiting.peek()) != null && head.future != null) {
+                if (head.future.isDone()) {
+                    waiting.poll();
+                } else if (canRun(head)) {
+                    waiting.poll();
+                    start(head);
+                    if (granted == null) {
+                        granted = new ArrayList<>();
+                    }
+                    granted.add(head);
+                } else {
+                    break;
+                }
+            }
+            notifyAll();
+        }
+        if (granted != null) {
+            for (Waiter waiter : granted) {
+                if (!waiter.future.complete(waiter.priority)) {
+                    // Inzwischen abgebrochen
+                    release(waiter.priority);
+                }
+            }
+        }
+    }
+
+    private void start(Waiter waiter) {
+        running++;
+        active[waiter.priority.ordinal()]++;
+        metrics.recordQueueWait(waiter.priority, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiter.start));
+    }
+
+    private boolean canRun(Waiter waiter) {
+        if (running >= maxConcurrent || waiting.peek() != waiter) {
+            return false;
+        }
+        return waiter.priority != RequestPriority.POLL || active[RequestPriority.COMMAND.ordinal()] == 0;
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final RequestPriority priority;
+        private final long sequence;
+        private final CompletableFuture<RequestPriority> future;
+        private final long start;
+
+        private Waiter(RequestPriority priority, long sequence, CompletableFuture<RequestPriority> future, long start) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.future = future;
+            this.start = start;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * {@link SelectorLoop} ein Thread mit einem NIO Selector, über den die {@link AsyncHttpClient}s aller Cubes ihre
+ * Verbindungen abwickeln
+ *
+ * Die Instanz wird mit dem ersten Client gestartet und mit dem letzten wieder beendet. Alle Zugriffe auf Channels und
+ * SelectionKeys laufen im Thread der Loop, andere Threads übergeben ihre Arbeit mit {@link #execute(Runnable)}.
+ *
+ */
+class SelectorLoop implements Runnable {
+    // Auflösung der Timeouts
+    private static final long SELECT_TIMEOUT = 100;
+
+    private static SelectorLoop instance;
+    private static int references;
+
+    private final Logger logger = LoggerFactory.getLogger(SelectorLoop.class);
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Nur im Thread der Loop verwendet
+    private final Set<Handler> handlers = new HashSet<>();
+    private volatile boolean running = true;
+
+    /**
+     * Bearbeitet die Events eines registrierten Channels
+     */
+    interface Handler {
+        void ready(SelectionKey key);
+
+        // Wird bei jedem Durchlauf der Loop aufgerufen
+        void checkTimeout(long now);
+    }
+
+    private SelectorLoop() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "MIYO-selector");
+        thread.setDaemon(true);
+    }
+
+    static synchronized SelectorLoop acquire() throws IOException {
+        if (instance == null) {
+            instance = new SelectorLoop();
+            instance.thread.start();
+        }
+        references++;
+        return instance;
+    }
+
+    // Die Loop endet, nachdem die bis dahin übergebenen Aufgaben abgearbeitet sind
+    static synchronized void release(SelectorLoop loop) {
+        if (loop == instance && --references == 0) {
+            instance = null;
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    SelectionKey register(SocketChannel channel, int ops, Handler handler) throws IOException {
+        return channel.register(selector, ops, handler);
+    }
+
+    void addHandler(Handler handler) {
+        handlers.add(handler);
+    }
+
+    void removeHandler(Handler handler) {
+        handlers.remove(handler);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                runTasks();
+                selector.select(SELECT_TIMEOUT);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Object handler = key.attachment();
+                    if (key.isValid() && handler instanceof Handler) {
+                        dispatch(() -> ((Handler) handler).ready(key));
+                    }
+                }
+                long now = System.currentTimeMillis();
+                for (Handler handler : new ArrayList<>(handlers)) {
+                    dispatch(() -> handler.checkTimeout(now));
+                }
+            }
+            runTasks();
+        } catch (IOException e) {
+            logger.warn("Selector of the MIYO binding failed: {}", e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    logger.trace("Could not close channel: {}", e.getMessage());
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.trace("Could not close selector: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            dispatch(task);
+        }
+    }
+
+    // Ein Fehler in einem Handler darf die Loop für die anderen Cubes nicht beenden
+    private void dispatch(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.warn("Unexpected error in the MIYO selector loop", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * {@link SensorCache} speichert die Sensorwerte aus /api/device/status pro Sensor-Id. Temperatur, Feuchtigkeit und
+ * Helligkeit ändern sich nur langsam, daher werden sie nur alle refreshInterval ms neu vom Cube geholt
+ *
+ */
+class SensorCache {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile long refreshInterval;
+
+    SensorCache(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    // Liefert die Werte nur, wenn sie noch nicht älter als refreshInterval sind
+    SensorStatus getFresh(String deviceId, long now) {
+        Entry entry = entries.get(deviceId);
+        if (entry != null && now - entry.fetchedAt < refreshInterval) {
+            return entry.status;
+        }
+        return null;
+    }
+
+    void put(String deviceId, SensorStatus status, long now) {
+        entries.put(deviceId, new Entry(status, now));
+    }
+
+    // Entfernt Sensoren, die kein Circuit mehr nutzt
+    void retain(Collection<String> deviceIds) {
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (!deviceIds.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    private static class Entry {
+        private final SensorStatus status;
+        private final long fetchedAt;
+
+        private Entry(SensorStatus status, long fetchedAt) {
+            this.status = status;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
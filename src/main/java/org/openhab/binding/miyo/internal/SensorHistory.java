@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * {@link SensorHistory} Ringpuffer fester Größe mit den Sensorwerten eines Circuits
+ *
+ * Zeitstempel und Werte liegen in primitiven Arrays, ein neuer Wert überschreibt den ältesten. Weder append noch
+ * aggregate erzeugen pro Wert neue Objekte.
+ *
+ */
+public class SensorHistory {
+    public static final int DEFAULT_CAPACITY = 1440;
+
+    private final long[] times;
+    private final float[] temperature;
+    private final float[] moisture;
+    private final float[] brightness;
+    // Index des nächsten Eintrags und Anzahl der belegten Einträge
+    private int next;
+    private int size;
+
+    public SensorHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SensorHistory(int capacity) {
+        times = new long[capacity];
+        temperature = new float[capacity];
+        moisture = new float[capacity];
+        brightness = new float[capacity];
+    }
+
+    public synchronized void append(long time, float temperature, float moisture, float brightness) {
+        times[next] = time;
+        this.temperature[next] = temperature;
+        this.moisture[next] = moisture;
+        this.brightness[next] = brightness;
+        next = (next + 1) % times.length;
+        if (size < times.length) {
+            size++;
+        }
+    }
+
+    // Zeit des letzten Werts, 0 wenn noch keiner aufgezeichnet wurde
+    public synchronized long getLastTime() {
+        return size == 0 ? 0 : times[index(0)];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Berechnet min, max, avg und die Steigung pro Stunde über alle Werte der letzten window ms. Liefert false, wenn
+    // im Zeitfenster kein Wert liegt
+    public synchronized boolean aggregate(CircuitField field, long now, long window, Aggregate result) {
+        float[] values = getValues(field);
+        result.reset();
+        long from = now - window;
+        double sumX = 0;
+        double sumY = 0;
+        double sumXX = 0;
+        double sumXY = 0;
+        // Vom neuesten zum ältesten Wert, bis das Zeitfenster verlassen wird
+        for (int i = 0; i < size; i++) {
+            int idx = index(i);
+            if (times[idx] < from) {
+                break;
+            }
+            float value = values[idx];
+            if (Float.isNaN(value)) {
+                continue;
+            }
+            double x = (double) (times[idx] - now) / TimeUnit.HOURS.toMillis(1);
+            result.count++;
+            result.min = Math.min(result.min, value);
+            result.max = Math.max(result.max, value);
+            sumX += x;
+            sumY += value;
+            sumXX += x * x;
+            sumXY += x * value;
+        }
+        if (result.count == 0) {
+            return false;
+        }
+        result.average = sumY / result.count;
+        double denominator = result.count * sumXX - sumX * sumX;
+        result.slope = result.count > 1 && denominator != 0 ? (result.count * sumXY - sumX * sumY) / denominator
+                : 0;
+        return true;
+    }
+
+    // i = 0 ist der neueste Wert
+    private int index(int i) {
+        return (next - 1 - i + times.length) % times.length;
+    }
+
+    private float[] getValues(CircuitField field) {
+        switch (field) {
+            case TEMPERATURE:
+                return temperature;
+            case MOISTURE:
+                return moisture;
+            case BRIGHTNESS:
+                return brightness;
+            default:
+                throw new IllegalArgumentException("No history for circuit field " + field);
+        }
+    }
+
+    /**
+     * Ergebnis von {@link SensorHistory#aggregate}, kann für mehrere Abfragen wiederverwendet werden
+     */
+    public static class Aggregate {
+        private int count;
+        private float min;
+        private float max;
+        private double average;
+        private double slope;
+
+        private void reset() {
+            count = 0;
+            min = Float.POSITIVE_INFINITY;
+            max = Float.NEGATIVE_INFINITY;
+            average = Double.NaN;
+            slope = Double.NaN;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public float getMin() {
+            return min;
+        }
+
+        public float getMax() {
+            return max;
+        }
+
+        public double getAverage() {
+            return average;
+        }
+
+        // Änderung pro Stunde laut linearer Regression
+        public double getSlope() {
+            return slope;
+        }
+    }
+}
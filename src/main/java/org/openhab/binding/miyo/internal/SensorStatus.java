@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.miyo.internal;
+
+/**
+ *
+ * {@link SensorStatus} Messwerte eines Sensors aus /api/device/status. Nicht gemeldete Werte sind NaN
+ *
+ */
+class SensorStatus {
+    float temperature = Float.NaN;
+    float moisture = Float.NaN;
+    float brightness = Float.NaN;
+
+    // Überträgt die gemeldeten Werte auf den Circuit
+    void applyTo(Circuit circuit) {
+        if (!Float.isNaN(temperature)) {
+            circuit.setTemperature(temperature);
+        }
+        if (!Float.isNaN(moisture)) {
+            circuit.setMoisture(moisture);
+        }
+        if (!Float.isNaN(brightness)) {
+            circuit.setBrightness(brightness);
+        }
+    }
+}
@@ -33,4 +33,16 @@ public class State {
         return considerMower;
     }
 
+    void setBorderBottom(String borderBottom) {
+        this.borderBottom = borderBottom;
+    }
+
+    void setBorderTop(String borderTop) {
+        this.borderTop = borderTop;
+    }
+
+    void setConsiderMower(boolean considerMower) {
+        this.considerMower = considerMower;
+    }
+
 }
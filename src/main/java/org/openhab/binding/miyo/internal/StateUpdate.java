@@ -16,6 +16,9 @@ import java.util.ArrayList;
  *
  */
 public class StateUpdate {
+    public static final String MODE = "mode";
+    public static final String WINTER = "winter";
+
     public ArrayList<Command> commands = new ArrayList<>();
 
     String toJson() {
@@ -43,21 +46,40 @@ public class StateUpdate {
 
     // Irrigation anschalten bzw. ausschalten
     public StateUpdate setOn(boolean on) {
-        if (on) {
-            commands.add(new Command("mode", "start"));
-        } else {
-            commands.add(new Command("mode", "stop"));
-        }
-        return this;
+        return set(MODE, on ? "start" : "stop");
     }
 
     // Wintermodus an bzw. ausschalten
     public StateUpdate setWinter(boolean on) {
-        if (on) {
-            commands.add(new Command("winter", "true"));
-        } else {
-            commands.add(new Command("winter", "false"));
+        return set(WINTER, on ? "true" : "false");
+    }
+
+    // Übernimmt alle Befehle aus other, bei gleichem Key gewinnt der spätere Befehl
+    public StateUpdate merge(StateUpdate other) {
+        for (Command command : other.commands) {
+            set(command.key, command.value);
+        }
+        return this;
+    }
+
+    public Object getValue(String key) {
+        for (Command command : commands) {
+            if (command.key.equals(key)) {
+                return command.value;
+            }
+        }
+        return null;
+    }
+
+    // Pro Key gibt es nur einen Befehl, ein neuer Wert ersetzt den alten
+    private StateUpdate set(String key, Object value) {
+        for (Command command : commands) {
+            if (command.key.equals(key)) {
+                command.value = value;
+                return this;
+            }
         }
+        commands.add(new Command(key, value));
         return this;
     }
 
@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) 2010-2017 by the respective copyright holders.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package org.openhab.binding.miyo.internal.exceptions;
+
+import java.io.IOException;
+
+/**
+ * {@link CubeUnavailableException} der Request wurde nicht gesendet, da der Cube nach mehreren Fehlern als nicht
+ * erreichbar gilt
+ *
+ *
+ *
+ */
+public class CubeUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public CubeUnavailableException(String message) {
+        super(message);
+    }
+
+}